@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.incava.util.diff.Diff;
+import org.incava.util.diff.Difference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Line diff engines and printDiffs on synthetic files. Setup checks that
+ * {@link LineDiff} and org.incava.util.diff.Diff give identical edit scripts
+ * for every input measured.
+ *
+ * @author Alan Snelson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    //Fraction of lines changed
+    @Param({"0.01", "0.1", "0.5"})
+    public double editDensity;
+
+    private String[] oldLines;
+    private String[] newLines;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(lines);
+        oldLines = new String[lines];
+        for (int i = 0; i < lines; i++) {
+            //Some repeated lines as in real config files
+            oldLines[i] = random.nextInt(200) == 0 ? "}" : "option" + random.nextInt(lines) + " = " + i;
+        }
+        newLines = mutate(oldLines, editDensity, random);
+        @SuppressWarnings("unchecked")
+        List<Difference> expected = new Diff(oldLines, newLines).diff();
+        if (!expected.equals(new LineDiff(oldLines, newLines).diff())) {
+            throw new IllegalStateException("LineDiff edit script differs from Diff");
+        }
+    }
+
+    /**
+     * Change, insert or delete the given fraction of lines
+     */
+    static String[] mutate(String[] lines, double density, Random random) {
+        ArrayList<String> result = new ArrayList<String>(lines.length);
+        for (String line : lines) {
+            if (random.nextDouble() >= density) {
+                result.add(line);
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    result.add(line + " changed");
+                    break;
+                case 1:
+                    result.add(line);
+                    result.add("inserted" + random.nextInt());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Benchmark
+    public List incavaDiff() {
+        return new Diff(oldLines, newLines).diff();
+    }
+
+    @Benchmark
+    public List<Difference> lineDiff() {
+        return new LineDiff(oldLines, newLines).diff();
+    }
+
+    @Benchmark
+    public List<Difference> histogramDiff() {
+        return DiffAlgorithms.diff("histogram", oldLines, newLines, 0);
+    }
+
+    @Benchmark
+    public String printDiffs() {
+        return osRecorder.printDiffs(newLines, oldLines);
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Include / exclude expansion over a generated tree.
+ *
+ * @author Alan Snelson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSetBenchmark {
+
+    private static final int FILES_PER_DIR = 50;
+    private static final int DIRS_PER_DIR = 5;
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private Path root;
+    private FileSet fileSet;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("osrecorder-bench");
+        generate(root, files, new ArrayList<String>());
+        fileSet = new FileSet(null, null, null);
+    }
+
+    /**
+     * Create files spread over nested folders, breadth first
+     */
+    static void generate(Path root, int count, List<String> paths) throws IOException {
+        List<Path> dirs = new ArrayList<Path>();
+        dirs.add(root);
+        int created = 0;
+        for (int d = 0; created < count; d++) {
+            Path dir = dirs.get(d);
+            for (int i = 0; i < DIRS_PER_DIR; i++) {
+                dirs.add(Files.createDirectory(dir.resolve("d" + dirs.size())));
+            }
+            for (int i = 0; i < FILES_PER_DIR && created < count; i++, created++) {
+                Path file = dir.resolve("f" + created + (created % 10 == 0 ? ".tmp" : ".conf"));
+                Files.write(file, ("value = " + created + "\n").getBytes(StandardCharsets.UTF_8));
+                paths.add(file.toString());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        delete(root);
+    }
+
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public List<String> processIncludes() {
+        return fileSet.processIncludes(new String[]{root + File.separator + "**" + File.separator + "*.conf"});
+    }
+
+    @Benchmark
+    public List<String> processExcludes() {
+        return fileSet.processExcludes(new String[]{root + File.separator + "**" + File.separator + "*.tmp"});
+    }
+}
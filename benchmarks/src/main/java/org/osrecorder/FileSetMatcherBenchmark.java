@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of classifying a path as the number of exclude patterns grows. With
+ * literal and <code>*.ext</code> segments it should stay flat; other
+ * wildcard segments (<code>?</code>, <code>[..]</code>, <code>f*.tmp</code>)
+ * are matched one by one, so their cost grows with their number.
+ *
+ * @author Alan Snelson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSetMatcherBenchmark {
+
+    private static final int PATHS = 1000;
+
+    @Param({"10", "100", "1000", "5000"})
+    public int patterns;
+
+    //Segments of the exclude patterns: literal, extension or wildcard
+    @Param({"literal", "extension", "wildcard"})
+    public String kind;
+
+    private FileSetMatcher matcher;
+    private String[] paths;
+
+    @Setup
+    public void setup() {
+        String[] excludes = new String[patterns];
+        for (int i = 0; i < patterns; i++) {
+            excludes[i] = exclude(i);
+        }
+        matcher = new FileSetMatcher(new String[]{"/srv/**/*.conf", "/srv/**/*.tmp"}, excludes);
+        paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            paths[i] = "/srv/d" + (i % 97) + "/d" + (i % 13) + "/f" + i + (i % 10 == 0 ? ".tmp" : ".conf");
+        }
+    }
+
+    private String exclude(int i) {
+        if (kind.equals("extension")) {
+            return i % 2 == 0 ? "/srv/d" + i + "/*.tmp" : "/srv/**/*.t" + i;
+        }
+        if (kind.equals("wildcard")) {
+            return i % 2 == 0 ? "/srv/d" + i + "?/**" : "/srv/**/f" + i + "[0-9].tmp";
+        }
+        return i % 2 == 0 ? "/srv/d" + i + "/**" : "/srv/**/f" + i + ".tmp";
+    }
+
+    @Benchmark
+    public int classify() {
+        int selected = 0;
+        for (String path : paths) {
+            if (matcher.classify(path).isSelected()) {
+                selected++;
+            }
+        }
+        return selected;
+    }
+}
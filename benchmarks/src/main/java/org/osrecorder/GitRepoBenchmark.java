@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Staging and committing changed files in a temporary repository, one
+ * AddCommand per file against a single batched run. Neither diffs the
+ * changes, and both commit with {@link GitRepo#save(String)}. Unchanged
+ * files already in the index show how the cost of each grows with the
+ * size of the index.
+ *
+ * @author Alan Snelson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GitRepoBenchmark {
+
+    @Param({"10", "100"})
+    public int files;
+
+    //Unchanged files in the index besides the changed ones
+    @Param({"0", "10000", "50000"})
+    public int indexed;
+
+    private Path dataDir;
+    private GitRepo repo;
+    private String[] paths;
+    private int round;
+
+    @Setup
+    public void setup() throws IOException {
+        dataDir = Files.createTempDirectory("osrecorder-bench");
+        repo = new GitRepo(dataDir.toString());
+        paths = new String[files];
+        for (int i = 0; i < files; i++) {
+            paths[i] = "etc/d" + (i % 10) + "/f" + i + ".conf";
+        }
+        change();
+        repo.beginRun();
+        for (int i = 0; i < indexed; i++) {
+            String path = "usr/d" + (i % 100) + "/f" + i + ".conf";
+            Path file = dataDir.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, ("value = " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            repo.processFile(path);
+        }
+        for (String path : paths) {
+            repo.processFile(path);
+        }
+        repo.commitRun(null);
+        repo.save("setup");
+    }
+
+    /**
+     * Give every file new content
+     */
+    @Setup(Level.Invocation)
+    public void change() throws IOException {
+        round++;
+        for (String path : paths) {
+            Path file = dataDir.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, ("value = " + round + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileSetBenchmark.delete(dataDir);
+    }
+
+    @Benchmark
+    public boolean processFileAndSave() {
+        for (String path : paths) {
+            repo.processFile(path);
+        }
+        return repo.save("benchmark");
+    }
+
+    @Benchmark
+    public boolean batchedRun() {
+        repo.beginRun();
+        for (String path : paths) {
+            repo.processFile(path);
+        }
+        //Write the index only, commitRun would also diff the changes
+        repo.commitRun(null);
+        return repo.save("benchmark");
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * End-to-end regression run: generate a tree under /tmp, record it with
+ * osRecorder, then apply rounds of edits, additions and deletions, recording
+ * after each. Wall time, bytes read and written, peak heap and notifications
+ * are reported per phase and compared with a saved baseline, along with the
+ * time osRecorder's own {@link Metrics} timers give each step of the run.
+ *
+ * @author Alan Snelson
+ */
+public class RegressionHarness {
+
+    private static final String[] METRICS = {"wallMillis", "bytesRead", "bytesWritten", "peakHeap",
+        "scanMillis", "statMillis", "copyMillis", "stageMillis", "diffMillis", "commitMillis", "notifyMillis"};
+    //Steps timed by Metrics, in the order of their METRICS entries
+    private static final String[] STEPS = {"scan", "stat", "copy", "stage", "diff", "commit"};
+    private static final String[] METHODS = {"smtp", "xmpp"};
+
+    @Option(name = "--files", usage = "Number of files generated")
+    private int files = 10000;
+    @Option(name = "--depth", usage = "Maximum folder depth")
+    private int depth = 4;
+    @Option(name = "--seed", usage = "Random seed")
+    private long seed = 1;
+    @Option(name = "--sizes", usage = "Percentage of small (4 KB), medium (64 KB) and large (1 MB) files")
+    private String sizes = "80,18,2";
+    @Option(name = "--rounds", usage = "Number of mutation rounds")
+    private int rounds = 3;
+    @Option(name = "--edit", usage = "Percentage of files edited per round")
+    private double edit = 5;
+    @Option(name = "--add", usage = "Files added per round")
+    private int add = 100;
+    @Option(name = "--delete", usage = "Files deleted per round")
+    private int delete = 50;
+    @Option(name = "--baseline", usage = "Baseline to compare against")
+    private File baseline;
+    @Option(name = "--save-baseline", usage = "Save the results as a baseline")
+    private File saveBaseline;
+    @Option(name = "--tolerance", usage = "Allowed increase over the baseline, e.g. 0.25 for 25%")
+    private double tolerance = 0.25;
+    @Option(name = "--slack", usage = "Increase in milliseconds always allowed for a step")
+    private long slack = 20;
+    @Option(name = "--keep", usage = "Keep the generated files")
+    private boolean keep;
+
+    private Map<String, long[]> results = new LinkedHashMap<String, long[]>();
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new RegressionHarness().doMain(args));
+    }
+
+    public int doMain(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException cle) {
+            System.err.println(cle.getMessage());
+            parser.printUsage(System.err);
+            return 2;
+        }
+
+        Path work = Files.createTempDirectory(Paths.get("/tmp"), "osrecorder-e2e");
+        SmtpStub smtp = new SmtpStub();
+        try {
+            TreeGenerator tree = new TreeGenerator(work.resolve("tree"), seed, depth, parseSizes(sizes));
+            tree.generate(files);
+            File config = writeConfig(work, smtp.getPort());
+
+            measure("initial", config, smtp);
+            for (int round = 1; round <= rounds; round++) {
+                tree.edit(edit);
+                tree.add(add);
+                tree.delete(delete);
+                measure("round" + round, config, smtp);
+            }
+        } finally {
+            smtp.close();
+            if (!keep) {
+                FileSetBenchmark.delete(work);
+            }
+        }
+
+        if (saveBaseline != null) {
+            save(saveBaseline);
+        }
+        return baseline == null ? 0 : compare(baseline);
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] parts = sizes.split(",");
+        int[] mix = new int[3];
+        for (int i = 0; i < parts.length && i < mix.length; i++) {
+            mix[i] = Integer.parseInt(parts[i].trim());
+        }
+        return mix;
+    }
+
+    /**
+     * Config recording the whole tree and mailing the stub
+     */
+    private static File writeConfig(Path work, int smtpPort) throws IOException {
+        String config = "datadir: " + work.resolve("data") + "\n"
+                + "notification:\n"
+                + "- method: smtp\n"
+                + "  server: 127.0.0.1\n"
+                + "  port: " + smtpPort + "\n"
+                + "  sender: osrecorder@localhost\n"
+                + "  recipients: [admin@localhost]\n"
+                + "fileset:\n"
+                + "- name: tree\n"
+                + "  include:\n"
+                + "  - " + work.resolve("tree") + "/**\n";
+        Path file = work.resolve("config.yml");
+        Files.write(file, config.getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    /**
+     * Run osRecorder once and record the cost of the run
+     */
+    private void measure(String phase, File config, SmtpStub smtp) throws IOException {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long[] io = readIo();
+        long[] steps = readSteps();
+        int messages = smtp.getMessages();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        long start = System.nanoTime();
+        try {
+            new osRecorder().doMain(new String[]{"-c", config.getPath()});
+        } finally {
+            System.setOut(out);
+        }
+        long wall = (System.nanoTime() - start) / 1000000;
+        long[] ioAfter = readIo();
+        long[] stepsAfter = readSteps();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        long[] metrics = new long[METRICS.length];
+        metrics[0] = wall;
+        metrics[1] = ioAfter[0] - io[0];
+        metrics[2] = ioAfter[1] - io[1];
+        metrics[3] = peakHeap;
+        for (int i = 0; i < steps.length; i++) {
+            metrics[4 + i] = (stepsAfter[i] - steps[i]) / 1000000;
+        }
+        results.put(phase, metrics);
+        System.out.printf("%-8s %8d ms %12d read %12d written %12d peak heap %3d notifications%n",
+                phase, metrics[0], metrics[1], metrics[2], metrics[3], smtp.getMessages() - messages);
+        StringBuilder line = new StringBuilder(String.format("%-8s", ""));
+        for (int i = 4; i < METRICS.length; i++) {
+            line.append(String.format(" %s %d ms", METRICS[i].substring(0, METRICS[i].length() - 6), metrics[i]));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Nanoseconds the Metrics timers have recorded for each step so far,
+     * summed over the copy and diff threads. Sending covers every method.
+     */
+    private static long[] readSteps() {
+        long[] steps = new long[STEPS.length + 1];
+        for (int i = 0; i < STEPS.length; i++) {
+            steps[i] = Metrics.getSumNanos(Metrics.PHASE_SECONDS, "phase", STEPS[i]);
+        }
+        for (String method : METHODS) {
+            steps[STEPS.length] += Metrics.getSumNanos(Metrics.NOTIFICATION_SECONDS, "method", method);
+        }
+        return steps;
+    }
+
+    /**
+     * Bytes read and written by this process so far, -1 where /proc is not
+     * available
+     */
+    private static long[] readIo() {
+        long[] io = {-1, -1};
+        Properties values = new Properties();
+        try (InputStream in = new FileInputStream("/proc/self/io")) {
+            values.load(in);
+            io[0] = Long.parseLong(values.getProperty("rchar").trim());
+            io[1] = Long.parseLong(values.getProperty("wchar").trim());
+        } catch (IOException | RuntimeException e) {
+            //Not Linux
+        }
+        return io;
+    }
+
+    private void save(File file) throws IOException {
+        Properties values = new Properties();
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            for (int i = 0; i < METRICS.length; i++) {
+                values.setProperty(result.getKey() + "." + METRICS[i], Long.toString(result.getValue()[i]));
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            values.store(out, "osRecorder regression baseline");
+        }
+    }
+
+    /**
+     * Compare with a baseline
+     *
+     * @return 0 if nothing regressed, 1 otherwise
+     */
+    private int compare(File file) throws IOException {
+        Properties values = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            values.load(in);
+        }
+        List<String> regressions = new ArrayList<String>();
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            for (int i = 0; i < METRICS.length; i++) {
+                String key = result.getKey() + "." + METRICS[i];
+                String expected = values.getProperty(key);
+                long actual = result.getValue()[i];
+                if (expected == null || actual < 0) {
+                    continue;
+                }
+                long limit = (long) (Long.parseLong(expected) * (1 + tolerance));
+                if (i >= 4) {
+                    //Short steps vary by more than the tolerance from run to run
+                    limit = Math.max(limit, Long.parseLong(expected) + slack);
+                }
+                if (actual > limit) {
+                    regressions.add(key + " " + actual + " > " + limit + " (baseline " + expected + ")");
+                }
+            }
+        }
+        for (String regression : regressions) {
+            System.err.println("Regression: " + regression);
+        }
+        return regressions.isEmpty() ? 0 : 1;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible file tree: the same seed, file count, depth and size mix
+ * always give the same files and the same mutations.
+ *
+ * @author Alan Snelson
+ */
+public class TreeGenerator {
+
+    //Upper bounds of the small, medium and large size classes
+    private static final int[] SIZES = {4096, 65536, 1048576};
+    private static final int FILES_PER_DIR = 40;
+
+    private Path root;
+    private Random random;
+    private int depth;
+    private int[] sizeMix;
+    private List<Path> dirs = new ArrayList<Path>();
+    private List<Path> files = new ArrayList<Path>();
+    private int nextFile;
+
+    /**
+     * Constructor
+     *
+     * @param root Folder to generate the tree in
+     * @param seed Random seed
+     * @param depth Maximum folder depth
+     * @param sizeMix Percentage of small (4 KB), medium (64 KB) and large (1 MB) files
+     */
+    public TreeGenerator(Path root, long seed, int depth, int[] sizeMix) {
+        this.root = root;
+        this.random = new Random(seed);
+        this.depth = Math.max(1, depth);
+        this.sizeMix = sizeMix;
+    }
+
+    /**
+     * Create the initial files
+     *
+     * @param count Number of files
+     */
+    public void generate(int count) throws IOException {
+        //Enough folders for FILES_PER_DIR each, spread over every level
+        int folders = Math.max(1, count / FILES_PER_DIR);
+        dirs.add(Files.createDirectories(root));
+        for (int i = 1; i < folders; i++) {
+            Path parent = dirs.get(random.nextInt(dirs.size()));
+            if (root.relativize(parent).getNameCount() >= depth) {
+                parent = root;
+            }
+            dirs.add(Files.createDirectories(parent.resolve("d" + i)));
+        }
+        add(count);
+    }
+
+    /**
+     * Add new files to random folders
+     */
+    public void add(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Path file = dirs.get(random.nextInt(dirs.size())).resolve("f" + nextFile++ + ".conf");
+            write(file, size(), false);
+            files.add(file);
+        }
+    }
+
+    /**
+     * Rewrite some lines of a percentage of the files
+     */
+    public void edit(double percent) throws IOException {
+        int count = (int) Math.round(files.size() * percent / 100);
+        for (Path file : pick(count)) {
+            write(file, (int) Files.size(file), true);
+        }
+    }
+
+    /**
+     * Delete random files
+     */
+    public void delete(int count) throws IOException {
+        List<Path> doomed = pick(Math.min(count, files.size()));
+        for (Path file : doomed) {
+            Files.delete(file);
+        }
+        files.removeAll(doomed);
+    }
+
+    public List<Path> getFiles() {
+        return files;
+    }
+
+    private List<Path> pick(int count) {
+        List<Path> shuffled = new ArrayList<Path>(files);
+        Collections.shuffle(shuffled, random);
+        return shuffled.subList(0, count);
+    }
+
+    private int size() {
+        int roll = random.nextInt(100);
+        int floor = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            if (roll < sizeMix[i] || i == SIZES.length - 1) {
+                return floor + random.nextInt(SIZES[i] - floor);
+            }
+            roll -= sizeMix[i];
+            floor = SIZES[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Write config-like text. Line n of a file is the same on every write
+     * unless it is one of the lines an edit changes.
+     */
+    private void write(Path file, int size, boolean edit) throws IOException {
+        Random lines = new Random(file.toString().hashCode());
+        long salt = random.nextLong();
+        int written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int n = 0; written < size; n++) {
+                long value = lines.nextLong();
+                if (edit && random.nextInt(20) == 0) {
+                    value ^= salt;
+                }
+                String line = "key" + n + " = " + Long.toHexString(value) + "\n";
+                out.write(line);
+                written += line.length();
+            }
+        }
+    }
+}
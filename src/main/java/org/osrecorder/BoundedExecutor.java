@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed worker pool with a bounded queue. Once the queue is full the
+ * submitting thread runs the task itself, so callers that keep at most
+ * {@link #getWindow()} results outstanding hold bounded memory.
+ *
+ * @author Alan Snelson
+ */
+public class BoundedExecutor {
+
+    private ThreadPoolExecutor executor;
+    private int window;
+
+    /**
+     * Constructor
+     *
+     * @param threads Number of worker threads (0 = number of processors)
+     * @param queuePerThread Queued tasks allowed per worker thread
+     */
+    BoundedExecutor(int threads, int queuePerThread) {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.window = threads * queuePerThread * 2;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * queuePerThread), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queue a task
+     *
+     * @param task Task to run
+     * @return Result of the task
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Number of results a caller should keep outstanding before consuming them
+     *
+     * @return Window size
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.diff.SequenceComparator;
+import org.incava.util.diff.Diff;
+import org.incava.util.diff.Difference;
+
+/**
+ * Diff algorithms selectable per FileSet.
+ *
+ * <ul>
+ * <li>myers - JGit MyersDiff, minimal edit scripts</li>
+ * <li>histogram - JGit HistogramDiff, the default, readable diffs of
+ * reordered blocks</li>
+ * <li>patience - JGit has no separate patience diff; HistogramDiff is its
+ * extension and is used instead</li>
+ * <li>lcs - {@link LineDiff}, repository diffs use myers</li>
+ * <li>incava - org.incava.util.diff.Diff, repository diffs use myers</li>
+ * </ul>
+ *
+ * When a maximum edit distance is set, files that certainly need more line
+ * insertions and deletions than that are shown as one coarse replacement
+ * instead of being diffed. The check counts lines present on one side and
+ * not the other, which never overestimates the edit distance and takes
+ * linear time plus a sort.
+ *
+ * @author Alan Snelson
+ */
+public class DiffAlgorithms {
+
+    public static final String DEFAULT = "histogram";
+
+    private static final List<String> NAMES = Arrays.asList("myers", "histogram", "patience", "lcs", "incava");
+
+    private DiffAlgorithms() {
+    }
+
+    /**
+     * Check an algorithm name
+     *
+     * @param name Algorithm name
+     * @return True if the algorithm is supported
+     */
+    public static boolean isSupported(String name) {
+        return name != null && NAMES.contains(name.toLowerCase());
+    }
+
+    /**
+     * JGit algorithm used for repository diffs
+     *
+     * @param name Algorithm name, null for the default
+     * @param maxEditDistance Edit distance above which a coarse diff is used, 0 for no limit
+     * @return Diff algorithm
+     */
+    public static DiffAlgorithm getAlgorithm(String name, int maxEditDistance) {
+        String algorithm = name == null ? DEFAULT : name.toLowerCase();
+        DiffAlgorithm diff = DiffAlgorithm.getAlgorithm("histogram".equals(algorithm) || "patience".equals(algorithm)
+                ? DiffAlgorithm.SupportedAlgorithm.HISTOGRAM : DiffAlgorithm.SupportedAlgorithm.MYERS);
+        return maxEditDistance > 0 ? new CoarseDiff(diff, maxEditDistance) : diff;
+    }
+
+    /**
+     * Diff two sets of lines
+     *
+     * @param name Algorithm name, null for the default
+     * @param a Lines diffed from
+     * @param b Lines diffed to
+     * @param maxEditDistance Edit distance above which a coarse diff is used, 0 for no limit
+     * @return Differences in line order
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Difference> diff(String name, String[] a, String[] b, int maxEditDistance) {
+        String algorithm = name == null ? DEFAULT : name.toLowerCase();
+        if (maxEditDistance > 0) {
+            int prefix = 0;
+            while (prefix < a.length && prefix < b.length && a[prefix].equals(b[prefix])) {
+                prefix++;
+            }
+            int aEnd = a.length;
+            int bEnd = b.length;
+            while (aEnd > prefix && bEnd > prefix && a[aEnd - 1].equals(b[bEnd - 1])) {
+                aEnd--;
+                bEnd--;
+            }
+            int[] aHashes = new int[aEnd - prefix];
+            int[] bHashes = new int[bEnd - prefix];
+            for (int i = prefix; i < aEnd; i++) {
+                aHashes[i - prefix] = a[i].hashCode();
+            }
+            for (int i = prefix; i < bEnd; i++) {
+                bHashes[i - prefix] = b[i].hashCode();
+            }
+            if (minEditDistance(aHashes, bHashes) > maxEditDistance) {
+                List<Difference> coarse = new ArrayList<Difference>();
+                coarse.add(toDifference(new Edit(prefix, aEnd, prefix, bEnd)));
+                return coarse;
+            }
+        }
+        if ("lcs".equals(algorithm)) {
+            return new LineDiff(a, b).diff();
+        }
+        if ("incava".equals(algorithm)) {
+            return new Diff(a, b).diff();
+        }
+        EditList edits = getAlgorithm(algorithm, 0).diff(Lines.COMPARATOR, new Lines(a), new Lines(b));
+        List<Difference> diffs = new ArrayList<Difference>(edits.size());
+        for (Edit edit : edits) {
+            diffs.add(toDifference(edit));
+        }
+        return diffs;
+    }
+
+    private static Difference toDifference(Edit edit) {
+        return new Difference(edit.getBeginA(), edit.getEndA() > edit.getBeginA() ? edit.getEndA() - 1 : Difference.NONE,
+                edit.getBeginB(), edit.getEndB() > edit.getBeginB() ? edit.getEndB() - 1 : Difference.NONE);
+    }
+
+    /**
+     * Lower bound of the edit distance: lines whose hash only appears on one
+     * side, or more often on one side than the other
+     */
+    private static long minEditDistance(int[] a, int[] b) {
+        Arrays.sort(a);
+        Arrays.sort(b);
+        long unmatched = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                unmatched++;
+                i++;
+            } else {
+                unmatched++;
+                j++;
+            }
+        }
+        return unmatched + (a.length - i) + (b.length - j);
+    }
+
+    /**
+     * Falls back to a single replacement when the region left after removing
+     * the common start and end needs more edits than the limit
+     */
+    private static class CoarseDiff extends DiffAlgorithm {
+
+        private DiffAlgorithm fine;
+        private int maxEditDistance;
+
+        CoarseDiff(DiffAlgorithm fine, int maxEditDistance) {
+            this.fine = fine;
+            this.maxEditDistance = maxEditDistance;
+        }
+
+        @Override
+        public <S extends Sequence> EditList diffNonCommon(SequenceComparator<? super S> cmp, S a, S b) {
+            int[] aHashes = new int[a.size()];
+            int[] bHashes = new int[b.size()];
+            for (int i = 0; i < aHashes.length; i++) {
+                aHashes[i] = cmp.hash(a, i);
+            }
+            for (int i = 0; i < bHashes.length; i++) {
+                bHashes[i] = cmp.hash(b, i);
+            }
+            if (minEditDistance(aHashes, bHashes) > maxEditDistance) {
+                return EditList.singleton(new Edit(0, a.size(), 0, b.size()));
+            }
+            return fine.diffNonCommon(cmp, a, b);
+        }
+    }
+
+    /**
+     * Lines of a file as a JGit sequence
+     */
+    private static class Lines extends Sequence {
+
+        static final SequenceComparator<Lines> COMPARATOR = new SequenceComparator<Lines>() {
+
+            @Override
+            public boolean equals(Lines a, int ai, Lines b, int bi) {
+                return a.lines[ai].equals(b.lines[bi]);
+            }
+
+            @Override
+            public int hash(Lines seq, int ptr) {
+                return seq.lines[ptr].hashCode();
+            }
+        };
+
+        private String[] lines;
+
+        Lines(String[] lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public int size() {
+            return lines.length;
+        }
+    }
+}
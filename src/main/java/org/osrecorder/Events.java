@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+/**
+ * JDK Flight Recorder events for the phases of a run, so a slow run can be
+ * read alongside the GC, I/O and thread events of the JVM. Events cost next
+ * to nothing unless a recording is active.
+ *
+ * @author Alan Snelson
+ */
+public class Events {
+
+    private Events() {
+    }
+
+    /**
+     * Start recording to a file. The recording is written when it is stopped
+     * or, for a daemon that is never stopped, when the JVM exits.
+     *
+     * @param path Destination .jfr file
+     * @return Running recording
+     */
+    public static Recording startRecording(String path) throws IOException {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException pe) {
+            throw new IOException(pe);
+        }
+        recording.setName("osRecorder");
+        recording.setDestination(Paths.get(path));
+        recording.setDumpOnExit(true);
+        recording.start();
+        return recording;
+    }
+
+    @Name("org.osrecorder.FileSetScan")
+    @Label("FileSet Scan")
+    @Category("osRecorder")
+    @Description("Expansion of the include and exclude entries of a FileSet")
+    static class FileSetScan extends Event {
+
+        @Label("FileSet")
+        String fileSet;
+
+        @Label("Paths")
+        int paths;
+    }
+
+    @Name("org.osrecorder.FileCopy")
+    @Label("File Copy")
+    @Category("osRecorder")
+    @Description("Copy of a changed file into the repository datadir")
+    static class FileCopy extends Event {
+
+        @Label("FileSet")
+        String fileSet;
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.osrecorder.IndexUpdate")
+    @Label("Index Update")
+    @Category("osRecorder")
+    @Description("Write of the staged additions and removals to the git index")
+    static class IndexUpdate extends Event {
+
+        @Label("Paths")
+        int paths;
+    }
+
+    @Name("org.osrecorder.DiffCompute")
+    @Label("Diff Compute")
+    @Category("osRecorder")
+    @Description("Diff of a single changed file")
+    static class DiffCompute extends Event {
+
+        @Label("FileSet")
+        String fileSet;
+
+        @Label("Path")
+        String path;
+
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.osrecorder.Commit")
+    @Label("Commit")
+    @Category("osRecorder")
+    @Description("Git commit of a run")
+    static class Commit extends Event {
+
+        @Label("Paths")
+        int paths;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("org.osrecorder.NotificationSend")
+    @Label("Notification Send")
+    @Category("osRecorder")
+    @Description("Delivery of a change report by one notification method")
+    static class NotificationSend extends Event {
+
+        @Label("Method")
+        String method;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Sent")
+        boolean sent;
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.osrecorder.config.FileSetConfig;
+
+/**
+ * Expands the include / exclude entries of every FileSet in parallel using a
+ * fork-join pool. Each FileSet is resolved with a single directory walk driven
+ * by its {@link FileSetMatcher}; every directory visited during the walk is a
+ * separate task, and subtrees that cannot match are never listed at all.
+ *
+ * Entries that cannot be read are skipped and remembered, along with
+ * directories that could not be listed, so files recorded below them are
+ * not mistaken for removed ones.
+ *
+ * @author Alan Snelson
+ */
+public class FileScanner {
+
+    private ForkJoinPool pool;
+    private Set<Path> incomplete = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    /**
+     * Constructor
+     *
+     * @param parallelism Number of scanner threads (0 = number of processors)
+     */
+    FileScanner(int parallelism) {
+        if (parallelism < 1) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Expand the includes of every FileSet and remove the excludes
+     *
+     * @param fileSetConfigs FileSet configurations
+     * @return Expanded file list for each FileSet, in configuration order
+     */
+    public Map<FileSetConfig, ArrayList<String>> scan(FileSetConfig[] fileSetConfigs) {
+        return scan(fileSetConfigs, null);
+    }
+
+    /**
+     * Expand the includes of every FileSet and remove the excludes
+     *
+     * @param fileSetConfigs FileSet configurations
+     * @param dirs Thread-safe set receiving every directory visited (may be null)
+     * @return Expanded file list for each FileSet, in configuration order
+     */
+    public Map<FileSetConfig, ArrayList<String>> scan(FileSetConfig[] fileSetConfigs, Set<Path> dirs) {
+        List<FileSetTask> tasks = new ArrayList<FileSetTask>();
+        for (FileSetConfig fileSetConf : fileSetConfigs) {
+            FileSetTask task = new FileSetTask(fileSetConf.getName(), new FileSetMatcher(fileSetConf.getInclude(), fileSetConf.getExclude()), dirs, incomplete);
+            pool.execute(task);
+            tasks.add(task);
+        }
+        Map<FileSetConfig, ArrayList<String>> results = new LinkedHashMap<FileSetConfig, ArrayList<String>>();
+        for (int i = 0; i < fileSetConfigs.length; i++) {
+            results.put(fileSetConfigs[i], tasks.get(i).join());
+        }
+        return results;
+    }
+
+    /**
+     * Expand a list of entries without excludes
+     *
+     * @param entries Include or exclude entries
+     * @return Files matched by the entries
+     */
+    public ArrayList<String> expand(String[] entries) {
+        return pool.invoke(new FileSetTask(null, new FileSetMatcher(entries, null), null, incomplete));
+    }
+
+    /**
+     * Paths the scans so far could not read, or could not list the contents
+     * of, so whatever was recorded below them is unknown
+     *
+     * @return Unreadable files and directories
+     */
+    public Set<Path> getIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Stop the scanner threads
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Expands all entries of a single FileSet
+     */
+    private static class FileSetTask extends RecursiveTask<ArrayList<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private FileSetMatcher matcher;
+        private Set<Path> dirs;
+        private Set<Path> incomplete;
+
+        FileSetTask(String name, FileSetMatcher matcher, Set<Path> dirs, Set<Path> incomplete) {
+            this.name = name;
+            this.matcher = matcher;
+            this.dirs = dirs;
+            this.incomplete = incomplete;
+        }
+
+        @Override
+        protected ArrayList<String> compute() {
+            Events.FileSetScan event = new Events.FileSetScan();
+            event.begin();
+            ArrayList<String> files = new ArrayList<String>(new WalkTask(null, matcher, matcher.start(), dirs, incomplete).compute());
+            event.fileSet = name;
+            event.paths = files.size();
+            event.commit();
+            return files;
+        }
+    }
+
+    /**
+     * Visits one directory and forks a task for each subdirectory that can
+     * hold matching files. Directories reached only through literal segments
+     * are not listed; their entries are looked up directly.
+     */
+    private static class WalkTask extends RecursiveTask<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path dir;
+        private FileSetMatcher matcher;
+        private FileSetMatcher.State state;
+        private Set<Path> dirs;
+        private Set<Path> incomplete;
+        private List<String> files = new ArrayList<String>();
+        private List<WalkTask> subdirs = new ArrayList<WalkTask>();
+
+        WalkTask(Path dir, FileSetMatcher matcher, FileSetMatcher.State state, Set<Path> dirs, Set<Path> incomplete) {
+            this.dir = dir;
+            this.matcher = matcher;
+            this.state = state;
+            this.dirs = dirs;
+            this.incomplete = incomplete;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (dir != null && dirs != null) {
+                dirs.add(dir);
+            }
+            List<String> names = state.getLiteralNames();
+            if (names != null) {
+                for (String name : names) {
+                    Path path = dir == null ? Paths.get(name + "/") : dir.resolve(name);
+                    try {
+                        visit(path, name, Files.readAttributes(path, BasicFileAttributes.class));
+                    } catch (NoSuchFileException nsfe) {
+                        //Entry does not exist
+                    } catch (IOException ioe) {
+                        skip(path);
+                    }
+                }
+            } else if (dir != null) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path path : stream) {
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            if (attrs.isSymbolicLink()) {
+                                //Follow links to files but never into directories to avoid cycles
+                                if (!Files.isRegularFile(path)) {
+                                    continue;
+                                }
+                                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                            }
+                            visit(path, path.getFileName().toString(), attrs);
+                        } catch (NoSuchFileException nsfe) {
+                            //Deleted while the directory was listed
+                        } catch (IOException ioe) {
+                            skip(path);
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    System.err.println("I was unable to process directory: " + dir);
+                    incomplete.add(dir);
+                }
+            }
+            for (WalkTask subdir : subdirs) {
+                files.addAll(subdir.join());
+            }
+            return files;
+        }
+
+        /**
+         * Leave out an entry that cannot be read, keeping what was recorded for it
+         */
+        private void skip(Path path) {
+            System.err.println("I was unable to process: " + path);
+            incomplete.add(path);
+        }
+
+        private void visit(Path path, String name, BasicFileAttributes attrs) {
+            FileSetMatcher.State next = matcher.step(state, name);
+            if (attrs.isDirectory()) {
+                if (!next.isPruned()) {
+                    WalkTask subdir = new WalkTask(path, matcher, next, dirs, incomplete);
+                    subdir.fork();
+                    subdirs.add(subdir);
+                }
+            } else if (attrs.isRegularFile() && next.isSelected()) {
+                files.add(path.toString());
+            }
+        }
+    }
+}
@@ -30,11 +30,20 @@
 package org.osrecorder;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.osrecorder.config.FileSetConfig;
 
@@ -44,14 +53,23 @@ import org.osrecorder.config.FileSetConfig;
 public class FileSet {
 
     private Repository repo;
+    private StatCache statCache;
+    private FileCopier copier;
+    private List<String> changes = new ArrayList<String>();
+    //Diff options for the files staged, null for the repository defaults
+    private FileSetConfig fileSetConf;
 
     /**
      * Constructor
      *
      * @param repo Change repository
+     * @param statCache Fingerprints of files already stored in the repository
+     * @param copier Copy threads
      */
-    FileSet(Repository repo) {
+    FileSet(Repository repo, StatCache statCache, FileCopier copier) {
         this.repo = repo;
+        this.statCache = statCache;
+        this.copier = copier;
     }
 
     /**
@@ -61,35 +79,7 @@ public class FileSet {
      * @return Clean list of includes
      */
     public ArrayList<String> processIncludes(String[] includes) {
-        ArrayList<String> expandedIncludes = new ArrayList<String>();
-        for (String include : includes) {
-            File includePath = new File(include);
-            if (includePath.getName().contains("*")) {
-                //Process wildcards
-                File includeGlob = new File(includePath.getParent());
-                try {
-                    for (File file : includeGlob.listFiles()) {
-                        if (file.isFile()) {
-                            //Only store unique files
-                            if (!expandedIncludes.contains(file.getAbsolutePath())) {
-                                expandedIncludes.add(file.getAbsolutePath());
-                            }
-                        }
-                    }
-                } catch (NullPointerException ne) {
-                    System.err.println("I was unable to process include: " + includePath);
-                }
-            } else {
-                //Process only files
-                if (includePath.isFile()) {
-                    //Only store unique files
-                    if (!expandedIncludes.contains(includePath.getAbsolutePath())) {
-                        expandedIncludes.add(includePath.getAbsolutePath());
-                    }
-                }
-            }
-        }
-        return expandedIncludes;
+        return expand(includes);
     }
 
     /**
@@ -99,37 +89,19 @@ public class FileSet {
      * @return Clean list of excludes
      */
     public ArrayList<String> processExcludes(String[] excludes) {
-        ArrayList<String> expandedExcludes = new ArrayList<String>();
-        if (excludes != null) {
-            for (String exclude : excludes) {
-                File excludePath = new File(exclude);
-                if (excludePath.getName().contains("*")) {
-                    //Process wildcards
-                    try {
-                        File excludeGlob = new File(excludePath.getParent());
-                        for (File file : excludeGlob.listFiles()) {
-                            if (file.isFile()) {
-                                //Only store unique files
-                                if (!expandedExcludes.contains(file.getAbsolutePath())) {
-                                    expandedExcludes.add(file.getAbsolutePath());
-                                }
-                            }
-                        }
-                    } catch (NullPointerException ne) {
-                        System.err.println("I was unable to process exclude: " + excludePath);
-                    }
-                } else {
-                    //Process only files
-                    if (excludePath.isFile()) {
-                        //Only store unique files
-                        if (!expandedExcludes.contains(excludePath.getAbsolutePath())) {
-                            expandedExcludes.add(excludePath.getAbsolutePath());
-                        }
-                    }
-                }
-            }
+        return expand(excludes);
+    }
+
+    /**
+     * Expand entries on a single scanner thread
+     */
+    private ArrayList<String> expand(String[] entries) {
+        FileScanner scanner = new FileScanner(1);
+        try {
+            return scanner.expand(entries);
+        } finally {
+            scanner.shutdown();
         }
-        return expandedExcludes;
     }
 
     /**
@@ -138,55 +110,315 @@ public class FileSet {
      * @param fileSetConf FileSet configuration
      */
     public String processFileSet(FileSetConfig fileSetConf) {
-        String result = "";
-        boolean filesModified = false;
-        ArrayList<String> includes = processIncludes(fileSetConf.getInclude());
-        ArrayList<String> excludes = processExcludes(fileSetConf.getExclude());
-        ArrayList<String> repoFiles = repo.listFiles();
-        includes.removeAll(excludes);
-        for (String include : includes) {
-            System.out.println(include);
-            //Create file objects for source and destination
-            File sourceFile = new File(include);
-            String cleanPath = sourceFile.getAbsolutePath().substring(sourceFile.getAbsolutePath().indexOf(File.separatorChar) + 1);
-            File destFile = new File(repo.getDataDir() + File.separatorChar + cleanPath);
-            //Create repo folders if not exisiting already
-            File destFolder = new File(destFile.getParent());
-            if (!destFolder.isDirectory() && !destFolder.exists()) {
-                if (!new File(destFile.getParent()).mkdirs()) {
-                    System.out.println("Failed to create repository folder: " + destFile.getParent());
+        FileScanner scanner = new FileScanner(1);
+        List<String> includes;
+        try {
+            includes = scanner.scan(new FileSetConfig[]{fileSetConf}).get(fileSetConf);
+        } finally {
+            scanner.shutdown();
+        }
+        return processFileSet(fileSetConf, includes, scanner.getIncomplete());
+    }
+
+    /**
+     * Check for modifications and store / report changes using a list of
+     * files already expanded by a {@link FileScanner}
+     *
+     * @param fileSetConf FileSet configuration
+     * @param includes Expanded includes with excludes removed
+     */
+    public String processFileSet(FileSetConfig fileSetConf, List<String> includes) {
+        return processFileSet(fileSetConf, includes, Collections.<Path>emptySet());
+    }
+
+    /**
+     * Record a FileSet in a run of its own, keeping the fingerprints once the
+     * changes are committed
+     *
+     * @return Changes, empty if nothing changed or the run failed
+     */
+    private String processFileSet(FileSetConfig fileSetConf, List<String> includes, Collection<Path> incomplete) {
+        repo.beginRun();
+        LinkedHashSet<String> repoFiles = new LinkedHashSet<String>(repo.listFiles());
+        boolean filesModified = stageFileSet(fileSetConf, includes, repoFiles);
+        keepUnscanned(repoFiles, incomplete);
+        filesModified |= removeFiles(repoFiles);
+        String message = repo.commitRun(filesModified ? "osRecorder: " + fileSetConf.getName() : null);
+        if (message == null) {
+            System.err.println("Failed to record changes, they will be retried on the next run");
+            return "";
+        }
+        statCache.save();
+        return message;
+    }
+
+    /**
+     * Store changed files within a run started by
+     * {@link Repository#beginRun()}, without committing
+     *
+     * @param fileSetConf FileSet configuration
+     * @param includes Expanded includes with excludes removed
+     * @param repoFiles Files in the repository, those included are removed
+     * @return Files modified
+     */
+    public boolean stageFileSet(FileSetConfig fileSetConf, List<String> includes, Set<String> repoFiles) {
+        this.fileSetConf = fileSetConf;
+        return storeFiles(includes, repoFiles);
+    }
+
+    /**
+     * Store / remove individual files, e.g. those reported by a
+     * {@link Watcher}, within a run started by {@link Repository#beginRun()}
+     *
+     * @param fileSetConf FileSet configuration
+     * @param changed Files created or modified
+     * @param removed Files deleted
+     * @return Files modified
+     */
+    public boolean stageChanges(FileSetConfig fileSetConf, List<String> changed, List<String> removed) {
+        this.fileSetConf = fileSetConf;
+        HashSet<String> repoFiles = new HashSet<String>(removed.isEmpty() ? new ArrayList<String>() : repo.listFiles());
+        boolean filesModified = storeFiles(changed, null);
+        for (String remove : removed) {
+            if (repoFiles.contains(cleanPath(remove))) {
+                deleteFile(cleanPath(remove));
+                filesModified = true;
+            }
+        }
+        return filesModified;
+    }
+
+    /**
+     * Remove files from the repository
+     *
+     * @param repoFiles Paths within the repository
+     * @return Files modified
+     */
+    public boolean removeFiles(Collection<String> repoFiles) {
+        for (String repoFile : repoFiles) {
+            deleteFile(repoFile);
+        }
+        return !repoFiles.isEmpty();
+    }
+
+    /**
+     * Keep files a scan could not see, below a directory it could not list
+     * or an entry it could not read, rather than remove them
+     *
+     * @param repoFiles Paths within the repository, those below an incomplete path are dropped
+     * @param incomplete Paths the scan could not read
+     */
+    public static void keepUnscanned(Collection<String> repoFiles, Collection<Path> incomplete) {
+        for (Path path : incomplete) {
+            String prefix = cleanPath(path.toString()).replace(File.separatorChar, '/');
+            for (Iterator<String> files = repoFiles.iterator(); files.hasNext(); ) {
+                String file = files.next();
+                if (file.equals(prefix) || file.startsWith(prefix + "/")) {
+                    files.remove();
                 }
             }
-            //Remove file from repoFiles
-            repoFiles.remove(cleanPath);
-            //Check if source file modification newer than repo copy
-            if (sourceFile.lastModified() > destFile.lastModified()) {
-                filesModified = true;
-                //Copy file into repo
-                try {
-                    FileChannel inChannel = new FileInputStream(include).getChannel();
-                    FileChannel outChannel = new FileOutputStream(destFile.getAbsolutePath()).getChannel();
-                    inChannel.transferTo(0, inChannel.size(),
-                            outChannel);
-                } catch (IOException ioe) {
-                    System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Repository paths stored or removed by this FileSet
+     *
+     * @return Changed paths
+     */
+    public List<String> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Path of a source file within the repository
+     */
+    private static String cleanPath(String include) {
+        String absolutePath = new File(include).getAbsolutePath();
+        return absolutePath.substring(absolutePath.indexOf(File.separatorChar) + 1);
+    }
+
+    /**
+     * Copy changed files into the repository on the copy threads and add them
+     * to the repository, in order, as the copies complete
+     *
+     * @param includes Source files
+     * @param repoFiles Receives removal of every include (may be null)
+     * @return True if any file was new or modified
+     */
+    private boolean storeFiles(List<String> includes, Set<String> repoFiles) {
+        boolean filesModified = false;
+        LinkedList<Future<Copy>> pending = new LinkedList<Future<Copy>>();
+        for (final String include : includes) {
+            if (repoFiles != null) {
+                //Remove file from repoFiles
+                repoFiles.remove(cleanPath(include));
+            }
+            pending.add(copier.submit(new Callable<Copy>() {
+
+                @Override
+                public Copy call() {
+                    return copyFile(include);
                 }
-                repo.processFile(sourceFile.getAbsolutePath().substring(sourceFile.getAbsolutePath().indexOf(File.separatorChar) + 1));
+            }));
+            if (pending.size() > copier.getWindow()) {
+                filesModified |= stageFile(pending.removeFirst());
             }
         }
-        //Delete files from repo
-        if (!repoFiles.isEmpty()) {
-            for (String repoFile : repoFiles) {
-                repo.removeFile(repoFile);
-                File deleteFile = new File(repo.getDataDir() + File.separatorChar + repoFile);
-                deleteFile.delete();
+        while (!pending.isEmpty()) {
+            filesModified |= stageFile(pending.removeFirst());
+        }
+        return filesModified;
+    }
+
+    /**
+     * Add a copied file to the repository. Its fingerprint is only recorded
+     * once the repository holds the content, so a file that fails to store is
+     * picked up again by the next run. The fingerprint takes the id of the
+     * content actually stored, so an edit made while the file was copied is
+     * seen as a change next time rather than hashed in its place.
+     *
+     * @param future Result of {@link #copyFile(String)}
+     * @return True if the file was new or modified
+     */
+    private boolean stageFile(Future<Copy> future) {
+        Copy copy;
+        try {
+            copy = future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ee) {
+            System.err.println(ee.getCause().getMessage());
+            return false;
+        }
+        if (copy == null) {
+            return false;
+        }
+        String cleanPath = cleanPath(copy.include);
+        File sourceFile = new File(copy.include);
+        long start = System.nanoTime();
+        byte[] id;
+        if (repo.isMirrored()) {
+            id = repo.storeFile(cleanPath, new File(repo.getDataDir() + File.separatorChar + cleanPath));
+        } else {
+            //The repository copies the source into its object database
+            Events.FileCopy event = new Events.FileCopy();
+            event.begin();
+            id = repo.storeFile(cleanPath, sourceFile);
+            if (id == null) {
+                return false;
             }
-            filesModified = true;
+            event.fileSet = getName();
+            event.path = cleanPath;
+            event.bytes = copy.fingerprint.size;
+            event.commit();
+            Metrics.add(Metrics.BYTES_COPIED, "fileset", getName(), event.bytes);
+        }
+        if (id == null) {
+            return false;
+        }
+        statCache.update(cleanPath, copy.fingerprint, id);
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "stage", start);
+        Metrics.add(Metrics.FILES_CHANGED, "fileset", getName(), 1);
+        changes.add(cleanPath);
+        if (fileSetConf != null) {
+            repo.setDiffOptions(cleanPath, fileSetConf);
         }
-        if (filesModified) {
-            result = repo.getDiffs();
-            repo.save();
+        return true;
+    }
+
+    /**
+     * Copy a source file into the repository if it changed. Runs on a copy
+     * thread.
+     *
+     * @param include Source file
+     * @return Modified source file or null if the file is unchanged
+     */
+    private Copy copyFile(String include) {
+        System.out.println(include);
+        //Create file objects for source and destination
+        File sourceFile = new File(include);
+        String cleanPath = cleanPath(include);
+        //Check source file against its last recorded fingerprint
+        StatCache.Fingerprint fingerprint;
+        long start = System.nanoTime();
+        try {
+            fingerprint = StatCache.stat(sourceFile);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return null;
+        }
+        boolean modified = statCache.isModified(cleanPath, fingerprint, sourceFile);
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "stat", start);
+        if (!modified) {
+            return null;
+        }
+        if (!repo.isMirrored()) {
+            //Repository reads the source directly
+            return new Copy(include, fingerprint);
+        }
+        File destFile = new File(repo.getDataDir() + File.separatorChar + cleanPath);
+        //Create repo folders if not exisiting already
+        File destFolder = destFile.getParentFile();
+        if (!destFolder.isDirectory() && !destFolder.mkdirs() && !destFolder.isDirectory()) {
+            System.out.println("Failed to create repository folder: " + destFile.getParent());
+        }
+        //Copy file into repo
+        start = System.nanoTime();
+        Events.FileCopy event = new Events.FileCopy();
+        event.begin();
+        try {
+            event.bytes = FileCopier.copy(sourceFile, destFile);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return null;
+        }
+        event.fileSet = getName();
+        event.path = cleanPath;
+        event.commit();
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "copy", start);
+        Metrics.add(Metrics.BYTES_COPIED, "fileset", getName(), event.bytes);
+        return new Copy(include, fingerprint);
+    }
+
+    /**
+     * Name of the FileSet being processed, null for orphaned files
+     */
+    private String getName() {
+        return fileSetConf == null ? null : fileSetConf.getName();
+    }
+
+    /**
+     * Remove a file from the repository
+     *
+     * @param repoFile Path within the repository
+     */
+    private void deleteFile(String repoFile) {
+        long start = System.nanoTime();
+        repo.removeFile(repoFile);
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "stage", start);
+        Metrics.add(Metrics.FILES_CHANGED, "fileset", getName(), 1);
+        changes.add(repoFile);
+        if (fileSetConf != null) {
+            repo.setDiffOptions(repoFile, fileSetConf);
+        }
+        statCache.remove(repoFile);
+        File deleteFile = new File(repo.getDataDir() + File.separatorChar + repoFile);
+        deleteFile.delete();
+    }
+
+    /**
+     * Source file found modified by {@link #copyFile(String)}, with the
+     * fingerprint taken before it was copied
+     */
+    private static class Copy {
+
+        private String include;
+        private StatCache.Fingerprint fingerprint;
+
+        Copy(String include, StatCache.Fingerprint fingerprint) {
+            this.include = include;
+            this.fingerprint = fingerprint;
         }
-        return result;
     }
 }
@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled include / exclude entries of a FileSet.
+ *
+ * Entries are globs: <code>*</code>, <code>?</code>, <code>[...]</code> and
+ * <code>{a,b}</code> match within a single directory and <code>**</code>
+ * matches any number of directories, so <code>/etc/&#42;&#42;/&#42;.conf</code>
+ * selects every .conf file below /etc. An exclude ending in
+ * <code>/&#42;&#42;</code>, or naming a directory without wildcards, excludes
+ * the whole directory.
+ *
+ * All entries are compiled into one automaton over path segments (a trie
+ * with wildcard edges) so a path is classified in a single pass over its
+ * segments. Literal segments and <code>*.ext</code> segments are hash
+ * lookups, so the cost per segment does not grow with the number of entries.
+ *
+ * @author Alan Snelson
+ */
+public class FileSetMatcher {
+
+    private static final String GLOB_CHARS = "*?[{";
+    private static final boolean IGNORE_CASE = File.separatorChar == '\\';
+
+    private static final int INCLUDE = 1;
+    private static final int INCLUDE_BELOW = 2;
+    private static final int EXCLUDE = 4;
+    private static final int EXCLUDE_BELOW = 8;
+
+    private Node root = new Node("");
+    private State start;
+
+    /**
+     * Constructor
+     *
+     * @param includes Include entries
+     * @param excludes Exclude entries (may be null)
+     */
+    public FileSetMatcher(String[] includes, String[] excludes) {
+        if (includes != null) {
+            for (String include : includes) {
+                add(include, true);
+            }
+        }
+        if (excludes != null) {
+            for (String exclude : excludes) {
+                add(exclude, false);
+            }
+        }
+        Set<Node> nodes = new LinkedHashSet<Node>();
+        closure(root, nodes);
+        start = new State(nodes, false, false);
+    }
+
+    /**
+     * Split an absolute path into segments using / as separator
+     */
+    private static String[] segments(String path) {
+        return new File(path).getAbsolutePath().replace(File.separatorChar, '/').split("/", -1);
+    }
+
+    private static String key(String segment) {
+        return IGNORE_CASE ? segment.toLowerCase() : segment;
+    }
+
+    private static boolean isGlob(String segment) {
+        for (char c : GLOB_CHARS.toCharArray()) {
+            if (segment.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add an entry to the automaton
+     */
+    private void add(String entry, boolean include) {
+        String[] segments = segments(entry);
+        int last = segments.length;
+        int flags = include ? INCLUDE : EXCLUDE;
+        if (last > 1 && segments[last - 1].equals("**")) {
+            //Trailing ** selects everything below the directory
+            last--;
+            flags = include ? INCLUDE_BELOW : EXCLUDE_BELOW;
+        } else if (!include && !isGlob(entry)) {
+            //Excluding a directory by name excludes its contents too
+            flags |= EXCLUDE_BELOW;
+        }
+        Node node = root;
+        for (int i = 0; i < last; i++) {
+            if (include) {
+                node.includeReach = true;
+            }
+            node = node.child(segments[i]);
+        }
+        node.flags |= flags;
+    }
+
+    /**
+     * Add a node and every ** reachable without consuming a segment
+     */
+    private static void closure(Node node, Collection<Node> nodes) {
+        while (node != null && nodes.add(node)) {
+            node = node.recursive;
+        }
+    }
+
+    /**
+     * State before the first path segment
+     *
+     * @return Start state
+     */
+    public State start() {
+        return start;
+    }
+
+    /**
+     * Advance a state by one path segment
+     *
+     * @param state Current state
+     * @param name Next path segment (file or directory name)
+     * @return State after the segment
+     */
+    public State step(State state, String name) {
+        Set<Node> next = new LinkedHashSet<Node>();
+        String key = key(name);
+        int dot = key.lastIndexOf('.');
+        boolean includeBelow = state.includeBelow;
+        boolean excludeBelow = state.excludeBelow;
+        for (Node node : state.nodes) {
+            includeBelow |= (node.flags & INCLUDE_BELOW) != 0;
+            excludeBelow |= (node.flags & EXCLUDE_BELOW) != 0;
+            closure(node.literals.get(key), next);
+            if (dot >= 0 && !node.extensions.isEmpty()) {
+                closure(node.extensions.get(key.substring(dot)), next);
+            }
+            closure(node.any, next);
+            for (Map.Entry<Pattern, Node> wildcard : node.wildcards.entrySet()) {
+                if (wildcard.getKey().matcher(key).matches()) {
+                    closure(wildcard.getValue(), next);
+                }
+            }
+            if (node.isRecursive) {
+                //** consumes the segment and stays put
+                next.add(node);
+            }
+        }
+        return new State(next, includeBelow, excludeBelow);
+    }
+
+    /**
+     * Classify a path in a single pass
+     *
+     * @param path Absolute path
+     * @return State after the last segment of the path
+     */
+    public State classify(String path) {
+        State state = start;
+        for (String segment : segments(path)) {
+            state = step(state, segment);
+        }
+        return state;
+    }
+
+    /**
+     * Check if a file is selected by this FileSet
+     *
+     * @param file Absolute file path
+     * @return True if an include matches and no exclude does
+     */
+    public boolean isIncluded(Path file) {
+        return classify(file.toString()).isSelected();
+    }
+
+    /**
+     * Check if a file is excluded
+     *
+     * @param file Absolute file path
+     * @return True if an exclude matches
+     */
+    public boolean isExcluded(Path file) {
+        return classify(file.toString()).isExcluded();
+    }
+
+    /**
+     * Position of a path in the automaton
+     */
+    public static class State {
+
+        private Node[] nodes;
+        private boolean includeBelow;
+        private boolean excludeBelow;
+        private int flags;
+
+        State(Collection<Node> nodes, boolean includeBelow, boolean excludeBelow) {
+            this.nodes = nodes.toArray(new Node[nodes.size()]);
+            this.includeBelow = includeBelow;
+            this.excludeBelow = excludeBelow;
+            for (Node node : this.nodes) {
+                flags |= node.flags;
+            }
+        }
+
+        /**
+         * @return True if the path is excluded
+         */
+        public boolean isExcluded() {
+            return excludeBelow || (flags & EXCLUDE) != 0;
+        }
+
+        /**
+         * @return True if the path, as a file, belongs to the FileSet
+         */
+        public boolean isSelected() {
+            return (includeBelow || (flags & INCLUDE) != 0) && !isExcluded();
+        }
+
+        /**
+         * @return True if nothing below the path, as a directory, can belong to the FileSet
+         */
+        public boolean isPruned() {
+            if (excludeBelow || (flags & EXCLUDE_BELOW) != 0) {
+                return true;
+            }
+            if (includeBelow || (flags & INCLUDE_BELOW) != 0) {
+                return false;
+            }
+            for (Node node : nodes) {
+                if (node.includeReach) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Names worth visiting below the path when only literal segments can
+         * match, so the directory does not have to be listed
+         *
+         * @return Literal names or null if the directory must be listed
+         */
+        public List<String> getLiteralNames() {
+            if (includeBelow) {
+                return null;
+            }
+            //Overlapping entries reach the same name through several nodes
+            Set<String> names = new LinkedHashSet<String>();
+            for (Node node : nodes) {
+                if ((node.isRecursive && node.includeReach) || (node.flags & INCLUDE_BELOW) != 0
+                        || isIncluding(node.any) || isIncluding(node.extensions.values())
+                        || isIncluding(node.wildcards.values())) {
+                    return null;
+                }
+                for (Node child : node.literals.values()) {
+                    if (isIncluding(child)) {
+                        names.add(child.name);
+                    }
+                }
+            }
+            return new ArrayList<String>(names);
+        }
+
+        private static boolean isIncluding(Collection<Node> children) {
+            for (Node child : children) {
+                if (isIncluding(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Check if an include entry ends at or passes through a node
+         */
+        private static boolean isIncluding(Node node) {
+            return node != null && (node.includeReach || (node.flags & (INCLUDE | INCLUDE_BELOW)) != 0);
+        }
+    }
+
+    /**
+     * Automaton node, one per distinct entry prefix
+     */
+    private static class Node {
+
+        private String name;
+        private Map<String, Node> literals = new LinkedHashMap<String, Node>();
+        private Map<String, Node> extensions = new HashMap<String, Node>();
+        private Map<Pattern, Node> wildcards = new LinkedHashMap<Pattern, Node>();
+        private Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+        private Node any;
+        private Node recursive;
+        private boolean isRecursive;
+        private boolean includeReach;
+        private int flags;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Find or create the node reached by a segment
+         */
+        Node child(String segment) {
+            String key = key(segment);
+            Node child;
+            if (segment.equals("**")) {
+                if (recursive == null) {
+                    recursive = new Node(segment);
+                    recursive.isRecursive = true;
+                }
+                child = recursive;
+            } else if (segment.equals("*")) {
+                if (any == null) {
+                    any = new Node(segment);
+                }
+                child = any;
+            } else if (!isGlob(segment)) {
+                child = literals.get(key);
+                if (child == null) {
+                    child = new Node(segment);
+                    literals.put(key, child);
+                }
+            } else if (key.startsWith("*.") && !isGlob(key.substring(1)) && key.indexOf('.', 2) < 0) {
+                child = extensions.get(key.substring(1));
+                if (child == null) {
+                    child = new Node(segment);
+                    extensions.put(key.substring(1), child);
+                }
+            } else {
+                Pattern pattern = patterns.get(key);
+                if (pattern == null) {
+                    pattern = Pattern.compile(toRegex(key));
+                    patterns.put(key, pattern);
+                    wildcards.put(pattern, new Node(segment));
+                }
+                child = wildcards.get(pattern);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Convert a single segment glob to a regular expression
+     */
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String chars = glob.substring(i + 1, close);
+                        if (chars.startsWith("!")) {
+                            chars = "^" + chars.substring(1);
+                        }
+                        regex.append('[').append(chars.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = close;
+                    }
+                    break;
+                case '{':
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (inGroup) {
+                        inGroup = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inGroup) {
+            regex.append(')');
+        }
+        return regex.toString();
+    }
+}
@@ -32,10 +32,21 @@ package org.osrecorder;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,12 +59,19 @@ import static org.eclipse.jgit.lib.Constants.HEAD;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.InitCommand;
 
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
 import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.UnmergedPathException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RepositoryBuilder;
@@ -61,14 +79,29 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.io.NullOutputStream;
+import org.osrecorder.config.FileSetConfig;
 
 /**
  * @author Alan Snelson
  */
 public class GitRepo implements org.osrecorder.Repository {
 
+    //Each queued diff holds a formatted buffer, so keep the queue short
+    private static final int DIFF_QUEUE_PER_THREAD = 1;
+
     private String dataDir;
     private Git repo;
+    private boolean mirror = true;
+    private DirCache batchCache;
+    private ObjectInserter batchInserter;
+    private Map<String, DirCacheEditor.PathEdit> batchEdits;
+    private long diffFileLimit;
+    private long diffTotalLimit;
+    private long maxDiffSize = 1048576;
+    private Map<String, FileSetConfig> diffOptions = new HashMap<String, FileSetConfig>();
+    private Map<FileSetConfig, DiffAlgorithm> diffAlgorithms = new HashMap<FileSetConfig, DiffAlgorithm>();
+    private int diffThreads;
 
     /**
      * Constructor
@@ -79,6 +112,17 @@ public class GitRepo implements org.osrecorder.Repository {
         initRepo(path);
     }
 
+    /**
+     * Constructor
+     *
+     * @param path Path to repository
+     * @param mirror Keep a copy of every file in the datadir
+     */
+    GitRepo(String path, boolean mirror) {
+        this(path);
+        this.mirror = mirror;
+    }
+
     public final void initRepo(String path) {
         InitCommand command = Git.init();
         command.setBare(false);
@@ -118,6 +162,118 @@ public class GitRepo implements org.osrecorder.Repository {
         return files;
     }
 
+    /**
+     * Start collecting index updates. Until {@link #commitBatch()} is called
+     * adds and removes are queued and the index is written only once.
+     *
+     * @return Success
+     */
+    @Override
+    public boolean beginBatch() {
+        if (batchCache != null) {
+            return true;
+        }
+        try {
+            batchCache = repo.getRepository().lockDirCache();
+        } catch (IOException ex) {
+            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        batchInserter = repo.getRepository().newObjectInserter();
+        batchEdits = new LinkedHashMap<String, DirCacheEditor.PathEdit>();
+        return true;
+    }
+
+    /**
+     * Apply every queued update in a single index write
+     *
+     * @return Success
+     */
+    @Override
+    public boolean commitBatch() {
+        if (batchCache == null) {
+            return false;
+        }
+        Events.IndexUpdate event = new Events.IndexUpdate();
+        event.begin();
+        try {
+            batchInserter.flush();
+            DirCacheEditor editor = batchCache.editor();
+            for (DirCacheEditor.PathEdit edit : batchEdits.values()) {
+                editor.add(edit);
+            }
+            event.paths = batchEdits.size();
+            return editor.commit();
+        } catch (IOException ex) {
+            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            releaseBatch();
+            event.commit();
+        }
+    }
+
+    /**
+     * Drop the queued index updates and release the index lock, e.g. when
+     * staging failed part way. Does nothing once the run is committed.
+     */
+    @Override
+    public void abandonRun() {
+        if (batchCache != null) {
+            releaseBatch();
+        }
+    }
+
+    private void releaseBatch() {
+        batchCache.unlock();
+        batchInserter.release();
+        batchCache = null;
+        batchInserter = null;
+        batchEdits = null;
+    }
+
+    /**
+     * Start a run. Every FileSet processed until {@link #commitRun(String)}
+     * shares one index write, one diff pass and one commit.
+     *
+     * @return Success
+     */
+    @Override
+    public boolean beginRun() {
+        diffOptions.clear();
+        return beginBatch();
+    }
+
+    /**
+     * Finish a run
+     *
+     * @param message Commit message, null if nothing changed
+     * @return Changes committed, empty if nothing changed, null if the index
+     * or the commit could not be written
+     */
+    @Override
+    public String commitRun(String message) {
+        int paths = batchEdits == null ? 0 : batchEdits.size();
+        if (batchCache != null && !commitBatch()) {
+            return null;
+        }
+        if (message == null) {
+            return "";
+        }
+        long start = System.nanoTime();
+        String result = getDiffs();
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "diff", start);
+        start = System.nanoTime();
+        Events.Commit event = new Events.Commit();
+        event.begin();
+        boolean saved = save(message);
+        event.paths = paths;
+        event.message = message;
+        event.commit();
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "commit", start);
+        return saved ? result : null;
+    }
+
     /**
      * Add file to repository
      *
@@ -125,6 +281,9 @@ public class GitRepo implements org.osrecorder.Repository {
      */
     @Override
     public boolean processFile(String path) {
+        if (batchCache != null) {
+            return storeFile(path, new File(dataDir, path)) != null;
+        }
         System.out.println(path);
         try {
             repo.add().addFilepattern(path.replace(File.separatorChar, '/')).call();
@@ -135,6 +294,51 @@ public class GitRepo implements org.osrecorder.Repository {
         return true;
     }
 
+    /**
+     * Add file to repository straight from its source, without a copy in the
+     * datadir
+     *
+     * @param path Path to file within the repository
+     * @param source Source file
+     * @return Blob id of the content stored, null if it could not be stored
+     */
+    @Override
+    public byte[] storeFile(String path, File source) {
+        System.out.println(path);
+        boolean single = batchCache == null;
+        if (single && !beginBatch()) {
+            return null;
+        }
+        final ObjectId blobId;
+        final long length;
+        final long lastModified = source.lastModified();
+        final FileMode mode = File.separatorChar == '/' && source.canExecute() ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+        byte[] stored = null;
+        try (FileInputStream in = new FileInputStream(source)) {
+            length = in.getChannel().size();
+            blobId = batchInserter.insert(Constants.OBJ_BLOB, length, in);
+            String entryPath = path.replace(File.separatorChar, '/');
+            batchEdits.put(entryPath, new DirCacheEditor.PathEdit(entryPath) {
+
+                @Override
+                public void apply(DirCacheEntry ent) {
+                    ent.setFileMode(mode);
+                    ent.setObjectId(blobId);
+                    ent.setLength(length);
+                    ent.setLastModified(lastModified);
+                }
+            });
+            stored = new byte[Constants.OBJECT_ID_LENGTH];
+            blobId.copyRawTo(stored, 0);
+        } catch (IOException ex) {
+            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (single && !commitBatch()) {
+            return null;
+        }
+        return stored;
+    }
+
     /**
      * Remove file from repository
      *
@@ -143,6 +347,11 @@ public class GitRepo implements org.osrecorder.Repository {
     @Override
     public boolean removeFile(String path) {
         System.out.println(path);
+        if (batchCache != null) {
+            String entryPath = path.replace(File.separatorChar, '/');
+            batchEdits.put(entryPath, new DirCacheEditor.DeletePath(entryPath));
+            return true;
+        }
         try {
             repo.rm().addFilepattern(path.replace(File.separatorChar, '/')).call();
         } catch (GitAPIException e) {
@@ -159,60 +368,444 @@ public class GitRepo implements org.osrecorder.Repository {
      */
     @Override
     public boolean save() {
+        return save("ttt");
+    }
+
+    /**
+     * Commit changes detected
+     *
+     * @param message Commit message
+     */
+    @Override
+    public boolean save(String message) {
         try {
-            repo.commit().setMessage("ttt").call();
+            repo.commit().setMessage(message).call();
         } catch (NoHeadException nhe) {
             System.err.println(nhe.getMessage());
+            return false;
         } catch (NoMessageException nme) {
             System.err.println(nme.getMessage());
+            return false;
         } catch (ConcurrentRefUpdateException crue) {
             System.err.println(crue.getMessage());
+            return false;
         } catch (WrongRepositoryStateException wrse) {
             System.err.println(wrse.getMessage());
+            return false;
         } catch (UnmergedPathsException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+            return false;
         } catch (GitAPIException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+            return false;
         }
         return true;
     }
 
     /**
-     * Get file differences
+     * Get changes between HEAD and the index, limited to the configured
+     * per-file and total budgets
      *
-     * @return List of differences
+     * @return Changes
      */
+    @Override
     public String getDiffs() {
-        ByteArrayOutputStream diffOutput = new ByteArrayOutputStream();
+        StringWriter diffOutput = new StringWriter();
         try {
-            //Test
+            writeDiffs(diffOutput, diffFileLimit, diffTotalLimit);
+        } catch (IOException ex) {
+            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return diffOutput.toString();
+    }
+
+    /**
+     * Write changes between HEAD and the index. Each file is formatted into a
+     * buffer no larger than its own budget or what is left of the total, so
+     * memory use stays bounded however large the change is. Once the total
+     * budget is spent the remaining files are counted without being diffed.
+     *
+     * @param out Destination
+     * @param fileLimit Maximum bytes per file, 0 for no limit
+     * @param totalLimit Maximum bytes in total, 0 for no limit
+     */
+    @Override
+    public void writeDiffs(Writer out, long fileLimit, long totalLimit) throws IOException {
+        writeDiffs(HEAD, out, fileLimit, totalLimit);
+    }
 
-            DiffFormatter diffFmt = new DiffFormatter(diffOutput);
+    /**
+     * Write every change made by the last commit in full, whatever the diff
+     * limits, e.g. to keep as a patch once the run is committed
+     *
+     * @param out Destination
+     */
+    @Override
+    public void writePatch(Writer out) throws IOException {
+        //After a commit the index matches HEAD, so diff it against the parent
+        writeDiffs(HEAD + "^", out, 0, 0);
+    }
+
+    private void writeDiffs(String base, Writer out, long fileLimit, long totalLimit) throws IOException {
+        ObjectId head = repo.getRepository().resolve(base + "^{tree}");
+        if (head == null) {
+            return;
+        }
+        List<DiffEntry> entries;
+        DiffFormatter diffFmt = new DiffFormatter(NullOutputStream.INSTANCE);
+        ObjectReader reader = repo.getRepository().newObjectReader();
+        try {
             diffFmt.setRepository(repo.getRepository());
-            AbstractTreeIterator oldTree;
-            AbstractTreeIterator newTree;
-            ObjectId head = repo.getRepository().resolve(HEAD + "^{tree}");
-            if (head != null) {
-                CanonicalTreeParser p = new CanonicalTreeParser();
-                ObjectReader reader = repo.getRepository().newObjectReader();
-                try {
-                    p.reset(reader, head);
-                } finally {
-                    reader.release();
+            CanonicalTreeParser oldTree = new CanonicalTreeParser();
+            oldTree.reset(reader, head);
+            DirCacheIterator newTree = new DirCacheIterator(repo.getRepository().readDirCache());
+            entries = diffFmt.scan(oldTree, newTree);
+        } finally {
+            reader.release();
+            diffFmt.release();
+        }
+
+        //Format files on the diff threads, reassembling them in path order.
+        //At most a window of files is formatted ahead of the output, so
+        //little work is wasted when the total budget runs out.
+        DiffOutput output = new DiffOutput(out, fileLimit, totalLimit);
+        BoundedExecutor workers = new BoundedExecutor(diffThreads, DIFF_QUEUE_PER_THREAD);
+        LinkedList<Future<DiffBuffer>> pending = new LinkedList<Future<DiffBuffer>>();
+        try {
+            for (final DiffEntry entry : entries) {
+                if (output.isSpent()) {
+                    break;
                 }
-                oldTree = p;
-                newTree = new DirCacheIterator(repo.getRepository().readDirCache());
-                diffFmt.format(oldTree, newTree);
-                diffFmt.flush();
+                final long bufferLimit = output.getBufferLimit();
+                final FileSetConfig fileSetConf = diffOptions.get(getPath(entry));
+                final DiffAlgorithm algorithm = getDiffAlgorithm(fileSetConf);
+                pending.add(workers.submit(new Callable<DiffBuffer>() {
+
+                    @Override
+                    public DiffBuffer call() throws IOException {
+                        return format(entry, fileSetConf, algorithm, bufferLimit);
+                    }
+                }));
+                if (pending.size() > workers.getWindow()) {
+                    output.write(take(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty() && !output.isSpent()) {
+                output.write(take(pending.removeFirst()));
             }
+        } finally {
+            //Files formatted ahead that no longer fit are dropped unfinished
+            for (Future<DiffBuffer> future : pending) {
+                future.cancel(true);
+            }
+            workers.shutdown();
+        }
+        output.finish(entries.size());
+    }
 
-            //End Test
-        } catch (AmbiguousObjectException ex) {
-            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(GitRepo.class.getName()).log(Level.SEVERE, null, ex);
+    private static DiffBuffer take(Future<DiffBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
         }
-        return diffOutput.toString();
+    }
+
+    private static String getPath(DiffEntry entry) {
+        return entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath();
+    }
+
+    /**
+     * Format a single file on a diff thread
+     */
+    private DiffBuffer format(DiffEntry entry, FileSetConfig fileSetConf, DiffAlgorithm algorithm, long limit) throws IOException {
+        Events.DiffCompute event = new Events.DiffCompute();
+        event.begin();
+        DiffBuffer buffer = new DiffBuffer();
+        buffer.reset(limit);
+        DiffFormatter diffFmt = new DiffFormatter(buffer);
+        ObjectReader reader = repo.getRepository().newObjectReader();
+        try {
+            diffFmt.setRepository(repo.getRepository());
+            diffFmt.setDiffAlgorithm(algorithm);
+            format(diffFmt, reader, entry, fileSetConf, buffer);
+        } finally {
+            reader.release();
+            diffFmt.release();
+        }
+        Metrics.add(Metrics.DIFF_BYTES, "fileset", fileSetConf == null ? null : fileSetConf.getName(), buffer.size());
+        event.fileSet = fileSetConf == null ? null : fileSetConf.getName();
+        event.path = getPath(entry);
+        event.algorithm = fileSetConf == null ? DiffAlgorithms.DEFAULT : fileSetConf.getDiffAlgorithm();
+        event.bytes = buffer.size();
+        event.commit();
+        return buffer;
+    }
+
+    /**
+     * Format a single file. Binary files and files above their size limit are
+     * summarised by id and size without being loaded or diffed.
+     */
+    private void format(DiffFormatter diffFmt, ObjectReader reader, DiffEntry entry, FileSetConfig fileSetConf, DiffBuffer buffer) throws IOException {
+        String path = getPath(entry);
+        long limit = fileSetConf != null ? fileSetConf.getMaxDiffSize() : maxDiffSize;
+        long oldSize = blobSize(reader, entry.getOldMode(), entry.getOldId().toObjectId());
+        long newSize = blobSize(reader, entry.getNewMode(), entry.getNewId().toObjectId());
+        String kind = null;
+        if (limit > 0 && (oldSize > limit || newSize > limit)) {
+            kind = "Large";
+        } else if (isBinary(reader, entry.getOldMode(), entry.getOldId().toObjectId())
+                || isBinary(reader, entry.getNewMode(), entry.getNewId().toObjectId())) {
+            kind = "Binary";
+        }
+        if (kind == null) {
+            diffFmt.format(entry);
+            diffFmt.flush();
+            return;
+        }
+        String summary = "diff --git a/" + path + " b/" + path + "\n"
+                + kind + " file: " + entry.getOldId().toObjectId().abbreviate(7).name() + " (" + oldSize + " bytes) -> "
+                + entry.getNewId().toObjectId().abbreviate(7).name() + " (" + newSize + " bytes)\n";
+        buffer.write(summary.getBytes());
+    }
+
+    /**
+     * Size of a blob without loading it, 0 if there is no blob
+     */
+    private static long blobSize(ObjectReader reader, FileMode mode, ObjectId id) throws IOException {
+        if (mode.getObjectType() != Constants.OBJ_BLOB) {
+            return 0;
+        }
+        return reader.getObjectSize(id, Constants.OBJ_BLOB);
+    }
+
+    /**
+     * Look for a NUL byte in the first block of a blob
+     */
+    private static boolean isBinary(ObjectReader reader, FileMode mode, ObjectId id) throws IOException {
+        if (mode.getObjectType() != Constants.OBJ_BLOB) {
+            return false;
+        }
+        InputStream in = reader.open(id, Constants.OBJ_BLOB).openStream();
+        try {
+            return RawText.isBinary(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Diff algorithm configured for a FileSet
+     *
+     * @param fileSetConf FileSet configuration, null for the default
+     */
+    private DiffAlgorithm getDiffAlgorithm(FileSetConfig fileSetConf) {
+        DiffAlgorithm algorithm = diffAlgorithms.get(fileSetConf);
+        if (algorithm == null) {
+            algorithm = fileSetConf == null ? DiffAlgorithms.getAlgorithm(null, 0)
+                    : DiffAlgorithms.getAlgorithm(fileSetConf.getDiffAlgorithm(), fileSetConf.getMaxEditDistance());
+            diffAlgorithms.put(fileSetConf, algorithm);
+        }
+        return algorithm;
+    }
+
+    /**
+     * Set the FileSet whose size limit and diff algorithm apply to a file
+     *
+     * @param path Path within the repository
+     * @param fileSetConf FileSet configuration
+     */
+    @Override
+    public void setDiffOptions(String path, FileSetConfig fileSetConf) {
+        diffOptions.put(path.replace(File.separatorChar, '/'), fileSetConf);
+    }
+
+    /**
+     * Set the number of threads formatting diffs
+     *
+     * @param threads Number of diff threads (0 = number of processors)
+     */
+    public void setDiffThreads(int threads) {
+        this.diffThreads = threads;
+    }
+
+    /**
+     * Set the budgets used by {@link #getDiffs()}
+     *
+     * @param fileLimit Maximum bytes per file, 0 for no limit
+     * @param totalLimit Maximum bytes in total, 0 for no limit
+     */
+    public void setDiffLimits(long fileLimit, long totalLimit) {
+        this.diffFileLimit = fileLimit;
+        this.diffTotalLimit = totalLimit;
+    }
+
+    /**
+     * Writes formatted files in order, applying the total budget
+     */
+    private static class DiffOutput {
+
+        private Writer out;
+        private long fileLimit;
+        private long totalLimit;
+        private long written;
+        private int shown;
+
+        DiffOutput(Writer out, long fileLimit, long totalLimit) {
+            this.out = out;
+            this.fileLimit = fileLimit;
+            this.totalLimit = totalLimit;
+        }
+
+        private long getRemaining() {
+            return totalLimit > 0 ? totalLimit - written : Long.MAX_VALUE;
+        }
+
+        /**
+         * @return True once nothing more fits in the total budget
+         */
+        boolean isSpent() {
+            return getRemaining() <= 0;
+        }
+
+        /**
+         * @return Most bytes worth formatting for the next file
+         */
+        long getBufferLimit() {
+            return Math.min(fileLimit > 0 ? fileLimit : Long.MAX_VALUE, getRemaining());
+        }
+
+        void write(DiffBuffer buffer) throws IOException {
+            long remaining = getRemaining();
+            if (remaining <= 0) {
+                return;
+            }
+            boolean lastFile = fileLimit <= 0 || remaining <= fileLimit;
+            if (lastFile) {
+                buffer.truncate(remaining);
+            }
+            if (buffer.size() == 0) {
+                if (lastFile) {
+                    //Nothing fit in what is left of the total budget
+                    written = totalLimit;
+                }
+                //Otherwise not even the header fit the per-file budget, the
+                //file is counted with those left out
+                return;
+            }
+            out.write(buffer.toString());
+            written += buffer.size();
+            shown++;
+            if (buffer.getDroppedLines() > 0) {
+                out.write("\u2026 " + buffer.getDroppedLines() + " lines truncated\n");
+                if (lastFile) {
+                    written = totalLimit;
+                }
+            }
+        }
+
+        void finish(int files) throws IOException {
+            if (shown < files) {
+                out.write("\u2026 " + (files - shown) + " more files\n");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Diff output buffer that keeps whole lines up to a limit and counts the
+     * lines it drops
+     */
+    private static class DiffBuffer extends ByteArrayOutputStream {
+
+        private long limit;
+        private long droppedLines;
+        private boolean dropping;
+
+        void reset(long limit) {
+            reset();
+            this.limit = limit;
+            this.droppedLines = 0;
+            this.dropping = false;
+        }
+
+        long getDroppedLines() {
+            return droppedLines;
+        }
+
+        /**
+         * Keep only the whole lines within the first limit bytes
+         */
+        void truncate(long limit) {
+            if (count <= limit) {
+                return;
+            }
+            for (int i = (int) limit; i < count; i++) {
+                if (buf[i] == '\n') {
+                    droppedLines++;
+                }
+            }
+            count = (int) limit;
+            while (count > 0 && buf[count - 1] != '\n') {
+                count--;
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (!dropping && count < limit) {
+                super.write(b);
+                return;
+            }
+            if (!dropping) {
+                //Drop the partial line already buffered
+                dropping = true;
+                while (count > 0 && buf[count - 1] != '\n') {
+                    count--;
+                }
+            }
+            if (b == '\n') {
+                droppedLines++;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (!dropping && count + len <= limit) {
+                super.write(b, off, len);
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+    }
+
+    /**
+     * Check if files are copied into the datadir before they are added
+     *
+     * @return True if the datadir mirrors the recorded files
+     */
+    @Override
+    public boolean isMirrored() {
+        return this.mirror;
+    }
+
+    /**
+     * Get folder for osRecorder's own state, kept inside .git so it is never
+     * mistaken for a recorded file
+     *
+     * @return Path to metadata folder
+     */
+    @Override
+    public File getMetaDir() {
+        return new File(repo.getRepository().getDirectory(), "osrecorder");
     }
 
     @Override
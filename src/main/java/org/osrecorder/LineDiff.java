@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.incava.util.diff.Difference;
+
+/**
+ * Line diff producing the same {@link Difference} list as
+ * {@link org.incava.util.diff.Diff}, without boxing. Lines are interned to
+ * int ids once, then the same longest common subsequence search runs over
+ * int arrays, with the threshold map and match links held in growable int
+ * arrays instead of TreeMap/HashMap entries.
+ *
+ * @author Alan Snelson
+ */
+public class LineDiff {
+
+    private int[] a;
+    private int[] b;
+    private int[] thresh;
+    private int threshSize;
+    //Match links: previous link, a index, b index
+    private int[] linkPrev;
+    private int[] linkA;
+    private int[] linkB;
+    private int linkCount;
+    //Latest link for each threshold index
+    private int[] linkAt;
+    private List<Difference> diffs = new ArrayList<Difference>();
+    private Difference pending;
+
+    /**
+     * Constructor
+     *
+     * @param a Lines diffed from
+     * @param b Lines diffed to
+     */
+    public LineDiff(String[] a, String[] b) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        this.a = intern(a, ids);
+        this.b = intern(b, ids);
+    }
+
+    private static int[] intern(String[] lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            Integer id = ids.get(lines[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines[i], id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Run the diff
+     *
+     * @return Differences in line order
+     */
+    public List<Difference> diff() {
+        int[] matches = getLongestCommonSubsequence();
+        int lastMatch = -1;
+        for (int i = matches.length - 1; i >= 0; i--) {
+            if (matches[i] != -1) {
+                lastMatch = i;
+                break;
+            }
+        }
+
+        int lastA = a.length - 1;
+        int lastB = b.length - 1;
+        int ai;
+        int bi = 0;
+        for (ai = 0; ai <= lastMatch; ai++) {
+            if (matches[ai] == -1) {
+                onANotB(ai, bi);
+            } else {
+                while (bi < matches[ai]) {
+                    onBNotA(ai, bi++);
+                }
+                onMatch();
+                bi++;
+            }
+        }
+        while (ai <= lastA || bi <= lastB) {
+            if (ai == lastA + 1 && bi <= lastB) {
+                while (bi <= lastB) {
+                    onBNotA(ai, bi++);
+                }
+            }
+            if (bi == lastB + 1 && ai <= lastA) {
+                while (ai <= lastA) {
+                    onANotB(ai++, bi);
+                }
+            }
+            if (ai <= lastA) {
+                onANotB(ai++, bi);
+            }
+            if (bi <= lastB) {
+                onBNotA(ai, bi++);
+            }
+        }
+        if (pending != null) {
+            diffs.add(pending);
+            pending = null;
+        }
+        return diffs;
+    }
+
+    private void onANotB(int ai, int bi) {
+        if (pending == null) {
+            pending = new Difference(ai, ai, bi, Difference.NONE);
+        } else {
+            pending.setDeleted(ai);
+        }
+    }
+
+    private void onBNotA(int ai, int bi) {
+        if (pending == null) {
+            pending = new Difference(ai, Difference.NONE, bi, bi);
+        } else {
+            pending.setAdded(bi);
+        }
+    }
+
+    private void onMatch() {
+        if (pending != null) {
+            diffs.add(pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * Longest common subsequence, indexed by line in a
+     *
+     * @return Matching line in b, -1 where there is none
+     */
+    private int[] getLongestCommonSubsequence() {
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, -1);
+        int aStart = 0;
+        int aEnd = a.length - 1;
+        int bStart = 0;
+        int bEnd = b.length - 1;
+        while (aStart <= aEnd && bStart <= bEnd && a[aStart] == b[bStart]) {
+            matches[aStart++] = bStart++;
+        }
+        while (aStart <= aEnd && bStart <= bEnd && a[aEnd] == b[bEnd]) {
+            matches[aEnd--] = bEnd--;
+        }
+
+        //Positions of each id in b, ascending, as offsets into one array
+        int idCount = 0;
+        for (int id : a) {
+            idCount = Math.max(idCount, id + 1);
+        }
+        for (int id : b) {
+            idCount = Math.max(idCount, id + 1);
+        }
+        int[] offsets = new int[idCount + 1];
+        for (int bi = bStart; bi <= bEnd; bi++) {
+            offsets[b[bi] + 1]++;
+        }
+        for (int id = 0; id < idCount; id++) {
+            offsets[id + 1] += offsets[id];
+        }
+        int[] positions = new int[Math.max(0, bEnd - bStart + 1)];
+        int[] fill = Arrays.copyOf(offsets, idCount);
+        for (int bi = bStart; bi <= bEnd; bi++) {
+            positions[fill[b[bi]]++] = bi;
+        }
+
+        int capacity = Math.min(aEnd - aStart + 1, bEnd - bStart + 1) + 1;
+        thresh = new int[Math.max(capacity, 1)];
+        threshSize = 0;
+        linkAt = new int[thresh.length];
+        Arrays.fill(linkAt, -1);
+        linkPrev = new int[16];
+        linkA = new int[16];
+        linkB = new int[16];
+        linkCount = 0;
+
+        for (int i = aStart; i <= aEnd; i++) {
+            int id = a[i];
+            int k = 0;
+            for (int p = offsets[id + 1] - 1; p >= offsets[id]; p--) {
+                int j = positions[p];
+                k = insert(j, k);
+                if (k != -1) {
+                    growLinks(k);
+                    linkAt[k] = addLink(k > 0 ? linkAt[k - 1] : -1, i, j);
+                }
+            }
+        }
+
+        if (threshSize > 0) {
+            for (int link = linkAt[threshSize - 1]; link != -1; link = linkPrev[link]) {
+                matches[linkA[link]] = linkB[link];
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Insert a line of b into the thresholds
+     *
+     * @param j Line in b
+     * @param k Threshold index returned for the previous line, -1 for none
+     * @return Threshold index, -1 if the line is already a threshold
+     */
+    private int insert(int j, int k) {
+        if (k > 0 && k < threshSize && thresh[k] > j && thresh[k - 1] < j) {
+            thresh[k] = j;
+            return k;
+        }
+        int hi = -1;
+        if (k > 0) {
+            hi = k;
+        } else if (threshSize > 0) {
+            hi = threshSize - 1;
+        }
+        //Off the end?
+        if (hi == -1 || j > thresh[threshSize - 1]) {
+            growThresh();
+            thresh[threshSize++] = j;
+            return hi + 1;
+        }
+        int lo = 0;
+        while (lo <= hi) {
+            int index = (hi + lo) >>> 1;
+            int val = thresh[index];
+            if (j == val) {
+                return -1;
+            } else if (j > val) {
+                lo = index + 1;
+            } else {
+                hi = index - 1;
+            }
+        }
+        if (lo == threshSize) {
+            growThresh();
+            threshSize++;
+        }
+        thresh[lo] = j;
+        return lo;
+    }
+
+    private void growThresh() {
+        if (threshSize == thresh.length) {
+            thresh = Arrays.copyOf(thresh, thresh.length * 2);
+        }
+    }
+
+    private void growLinks(int k) {
+        if (k >= linkAt.length) {
+            int length = linkAt.length;
+            linkAt = Arrays.copyOf(linkAt, Math.max(k + 1, length * 2));
+            Arrays.fill(linkAt, length, linkAt.length, -1);
+        }
+    }
+
+    private int addLink(int prev, int ai, int bi) {
+        if (linkCount == linkPrev.length) {
+            linkPrev = Arrays.copyOf(linkPrev, linkCount * 2);
+            linkA = Arrays.copyOf(linkA, linkCount * 2);
+            linkB = Arrays.copyOf(linkB, linkCount * 2);
+        }
+        linkPrev[linkCount] = prev;
+        linkA[linkCount] = ai;
+        linkB[linkCount] = bi;
+        return linkCount++;
+    }
+}
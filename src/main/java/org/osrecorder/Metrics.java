@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters and timing histograms, exported in the Prometheus
+ * text exposition format. Series are keyed by metric name and a single label
+ * (phase, FileSet or notification method) and are safe to update from the
+ * copy and diff worker threads.
+ *
+ * @author Alan Snelson
+ */
+public class Metrics {
+
+    public static final String PHASE_SECONDS = "osrecorder_phase_duration_seconds";
+    public static final String NOTIFICATION_SECONDS = "osrecorder_notification_duration_seconds";
+    public static final String NOTIFICATION_FAILURES = "osrecorder_notification_failures_total";
+    public static final String FILES_SCANNED = "osrecorder_files_scanned_total";
+    public static final String FILES_CHANGED = "osrecorder_files_changed_total";
+    public static final String BYTES_COPIED = "osrecorder_bytes_copied_total";
+    public static final String DIFF_BYTES = "osrecorder_diff_bytes_total";
+    public static final String RUNS = "osrecorder_runs_total";
+    public static final String LAST_RUN = "osrecorder_last_run_timestamp_seconds";
+    public static final String OUTBOX_PENDING = "osrecorder_outbox_pending_reports";
+
+    //Histogram bucket upper bounds in seconds
+    private static final double[] BUCKETS = {0.0001, 0.001, 0.01, 0.1, 0.5, 1, 5, 30, 120, 600};
+
+    private static final Map<String, String[]> DEFINITIONS = new LinkedHashMap<String, String[]>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, Object>> SERIES = new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
+
+    static {
+        define(PHASE_SECONDS, "histogram", "Time spent in each phase of a run (scan, stat, copy, stage, diff, commit).");
+        define(NOTIFICATION_SECONDS, "histogram", "Time spent sending notifications by method.");
+        define(NOTIFICATION_FAILURES, "counter", "Notifications that could not be sent by method.");
+        define(FILES_SCANNED, "counter", "Files matched by the scanner by FileSet.");
+        define(FILES_CHANGED, "counter", "Files staged or removed in the repository by FileSet.");
+        define(BYTES_COPIED, "counter", "Bytes copied into the repository by FileSet.");
+        define(DIFF_BYTES, "counter", "Bytes of diff output produced by FileSet.");
+        define(RUNS, "counter", "Completed recording runs.");
+        define(LAST_RUN, "gauge", "Unix time the last run completed.");
+        define(OUTBOX_PENDING, "gauge", "Change reports waiting in the notification outbox.");
+    }
+
+    private Metrics() {
+    }
+
+    private static void define(String name, String type, String help) {
+        DEFINITIONS.put(name, new String[]{type, help});
+        SERIES.put(name, new ConcurrentHashMap<String, Object>());
+    }
+
+    /**
+     * Look up or create the series for a label value
+     */
+    private static Object series(String name, String label, String value) {
+        ConcurrentMap<String, Object> series = SERIES.get(name);
+        String key = key(label, value);
+        Object current = series.get(key);
+        if (current == null) {
+            Object created = DEFINITIONS.get(name)[0].equals("histogram") ? new Histogram() : new AtomicLong();
+            current = series.putIfAbsent(key, created);
+            if (current == null) {
+                current = created;
+            }
+        }
+        return current;
+    }
+
+    private static String key(String label, String value) {
+        return label == null ? "" : label + "=\"" + escape(value == null ? "" : value) + "\"";
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param name Metric name
+     * @param label Label name, null for an unlabelled series
+     * @param value Label value
+     * @param delta Amount to add
+     */
+    public static void add(String name, String label, String value, long delta) {
+        ((AtomicLong) series(name, label, value)).addAndGet(delta);
+    }
+
+    /**
+     * Set a gauge
+     *
+     * @param name Metric name
+     * @param value New value
+     */
+    public static void set(String name, long value) {
+        ((AtomicLong) series(name, null, null)).set(value);
+    }
+
+    /**
+     * Record a duration in a histogram
+     *
+     * @param name Metric name
+     * @param label Label name
+     * @param value Label value
+     * @param startNanos Start of the timed section from System.nanoTime()
+     */
+    public static void observe(String name, String label, String value, long startNanos) {
+        ((Histogram) series(name, label, value)).observe(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Total of the durations recorded in a histogram
+     *
+     * @param name Metric name
+     * @param label Label name
+     * @param value Label value
+     * @return Nanoseconds, 0 if nothing was recorded
+     */
+    public static long getSumNanos(String name, String label, String value) {
+        Object series = SERIES.get(name).get(key(label, value));
+        return series instanceof Histogram ? ((Histogram) series).sumNanos.get() : 0;
+    }
+
+    /**
+     * Write all series in the Prometheus text exposition format
+     *
+     * @param writer Destination
+     */
+    public static void writeTo(Writer writer) throws IOException {
+        for (Map.Entry<String, String[]> definition : DEFINITIONS.entrySet()) {
+            String name = definition.getKey();
+            Map<String, Object> series = new TreeMap<String, Object>(SERIES.get(name));
+            if (series.isEmpty()) {
+                continue;
+            }
+            writer.write("# HELP " + name + " " + definition.getValue()[1] + "\n");
+            writer.write("# TYPE " + name + " " + definition.getValue()[0] + "\n");
+            for (Map.Entry<String, Object> entry : series.entrySet()) {
+                if (entry.getValue() instanceof Histogram) {
+                    ((Histogram) entry.getValue()).writeTo(writer, name, entry.getKey());
+                } else {
+                    writer.write(name + labels(entry.getKey(), null) + " " + entry.getValue() + "\n");
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write all series to a node-exporter textfile collector file. The file
+     * is written alongside and renamed into place so the collector never
+     * reads a partial file.
+     *
+     * @param file Destination .prom file
+     */
+    public static void writeTextfile(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writeTo(writer);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Serve the metrics over HTTP for scraping
+     *
+     * @param port Port to listen on
+     * @return Running server
+     */
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringWriter text = new StringWriter();
+                writeTo(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static String labels(String key, String le) {
+        if (le == null) {
+            return key.isEmpty() ? "" : "{" + key + "}";
+        }
+        return "{" + (key.isEmpty() ? "" : key + ",") + "le=\"" + le + "\"}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Cumulative histogram of durations
+     */
+    private static class Histogram {
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong sumNanos = new AtomicLong();
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            sumNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        void writeTo(Writer writer, String name, String key) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets.get(i);
+                writer.write(name + "_bucket" + labels(key, BigDecimal.valueOf(BUCKETS[i]).toPlainString()) + " " + cumulative + "\n");
+            }
+            long total = count.get();
+            writer.write(name + "_bucket" + labels(key, "+Inf") + " " + Math.max(total, cumulative) + "\n");
+            writer.write(name + "_sum" + labels(key, null) + " " + sumNanos.get() / 1e9 + "\n");
+            writer.write(name + "_count" + labels(key, null) + " " + Math.max(total, cumulative) + "\n");
+        }
+    }
+}
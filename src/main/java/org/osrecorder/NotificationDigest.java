@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Combines change reports into one compact message: every path changed with
+ * the number of reports that changed it and the lines added and removed,
+ * followed by the latest diff of each path for as long as they fit in the
+ * message size limit.
+ *
+ * @author Alan Snelson
+ */
+public class NotificationDigest {
+
+    private static final String FILE_HEADER = "diff --git a/";
+    private static final String MORE_FILES = " more files\n";
+    //Room kept for the closing line saying what was left out
+    private static final int RESERVE = 128;
+
+    private Map<String, Change> changes = new LinkedHashMap<String, Change>();
+    private int reports;
+    private long omittedFiles;
+
+    /**
+     * Add a change report
+     *
+     * @param report Diffs of one run, as produced by {@link Repository#getDiffs()}
+     */
+    public void add(String report) {
+        Parser parser = new Parser(true);
+        int start = 0;
+        while (start < report.length()) {
+            int end = report.indexOf('\n', start);
+            end = end < 0 ? report.length() : end + 1;
+            parser.line(report.substring(start, end));
+            start = end;
+        }
+        parser.finish();
+    }
+
+    /**
+     * Add a run's full patch, as produced by {@link Repository#writePatch},
+     * counting the lines each path added and removed without keeping its diff
+     *
+     * @param patch Patch of one run
+     */
+    public void addPatch(Reader patch) throws IOException {
+        Parser parser = new Parser(false);
+        BufferedReader in = new BufferedReader(patch, 65536);
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            parser.line(line + "\n");
+        }
+        parser.finish();
+    }
+
+    /**
+     * Splits a report into the changes to each path
+     */
+    private class Parser {
+
+        private String path;
+        private StringBuilder diff;
+        private int added;
+        private int removed;
+
+        Parser(boolean diffs) {
+            reports++;
+            diff = diffs ? new StringBuilder() : null;
+        }
+
+        void line(String line) {
+            if (line.startsWith(FILE_HEADER)) {
+                finish();
+                path = line.substring(line.lastIndexOf(" b/") + 3).trim();
+                if (diff != null) {
+                    diff.setLength(0);
+                    diff.append(line);
+                }
+                added = 0;
+                removed = 0;
+            } else if (line.startsWith("\u2026 ") && line.endsWith(MORE_FILES)) {
+                //Files left out of the report by the diff limits
+                finish();
+                path = null;
+                omittedFiles += Long.parseLong(line.substring(2, line.length() - MORE_FILES.length()));
+            } else if (path != null) {
+                if (diff != null) {
+                    diff.append(line);
+                }
+                if (line.startsWith("+") && !line.startsWith("+++ ")) {
+                    added++;
+                } else if (line.startsWith("-") && !line.startsWith("--- ")) {
+                    removed++;
+                }
+            }
+        }
+
+        void finish() {
+            addChange(path, diff == null ? "" : diff.toString(), added, removed);
+            path = null;
+        }
+    }
+
+    private void addChange(String path, String diff, int added, int removed) {
+        if (path == null) {
+            return;
+        }
+        Change change = changes.get(path);
+        if (change == null) {
+            change = new Change();
+            changes.put(path, change);
+        }
+        change.count++;
+        change.added += added;
+        change.removed += removed;
+        change.diff = diff;
+    }
+
+    /**
+     * Number of reports added
+     *
+     * @return Reports
+     */
+    public int getReports() {
+        return reports;
+    }
+
+    /**
+     * Format the digest
+     *
+     * @param maxSize Largest message in bytes, 0 for no limit
+     * @return Digest message
+     */
+    public String format(long maxSize) {
+        return format(maxSize, true);
+    }
+
+    /**
+     * Format the list of changed paths without their diffs
+     *
+     * @param maxSize Largest message in bytes, 0 for no limit
+     * @return Summary message
+     */
+    public String formatSummary(long maxSize) {
+        return format(maxSize, false);
+    }
+
+    private String format(long maxSize, boolean diffs) {
+        long budget = maxSize > 0 ? Math.max(maxSize - RESERVE, 0) : Long.MAX_VALUE;
+        StringBuilder out = new StringBuilder();
+        out.append("osRecorder: ").append(changes.size()).append(" file(s) changed in ").append(reports).append(" report(s)\n\n");
+        long size = out.length();
+        int listed = 0;
+        for (Map.Entry<String, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            String line = "    " + entry.getKey() + " +" + change.added + " -" + change.removed
+                    + (change.count > 1 ? " (" + change.count + " changes)" : "") + "\n";
+            long length = bytes(line);
+            if (size + length > budget) {
+                break;
+            }
+            out.append(line);
+            size += length;
+            listed++;
+        }
+        if (listed < changes.size()) {
+            return out.append("\u2026 ").append(changes.size() - listed).append(MORE_FILES).toString();
+        }
+        if (omittedFiles > 0) {
+            out.append("    \u2026 ").append(omittedFiles).append(" more files left out of the reports\n");
+        }
+        out.append('\n');
+        if (!diffs) {
+            return out.toString();
+        }
+        int skipped = 0;
+        for (Change change : changes.values()) {
+            long length = bytes(change.diff);
+            if (size + length > budget) {
+                //A smaller diff further on may still fit
+                skipped++;
+                continue;
+            }
+            out.append(change.diff);
+            size += length;
+        }
+        if (skipped > 0) {
+            out.append("\u2026 ").append(skipped).append(" more diffs left out, messages are limited to ").append(maxSize).append(" bytes\n");
+        }
+        return out.toString();
+    }
+
+    private static long bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Changes to one path
+     */
+    private static class Change {
+
+        private int count;
+        private int added;
+        private int removed;
+        private String diff;
+    }
+}
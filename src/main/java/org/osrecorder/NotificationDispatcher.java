@@ -0,0 +1,680 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.net.SocketFactory;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ChatManager;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.MessageListener;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.osrecorder.config.NotificationMethodConfig;
+
+/**
+ * Sends a change report through every notification method in parallel. Each
+ * method has its own connect and send timeouts; a method that has not
+ * finished by then is reported as timed out and cut off by closing its
+ * socket, so a slow relay never holds up recording and a late send cannot
+ * succeed after it was given up on. SMTP and XMPP connections are kept open
+ * after a successful send and reused by later sends to the same server once
+ * they pass a health check.
+ *
+ * @author Alan Snelson
+ */
+public class NotificationDispatcher {
+
+    private ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "osRecorder-notify");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //Connected SMTP transports and logged in XMPP connections waiting to be reused, by server
+    private final Map<String, Deque<Pooled<Transport>>> idleTransports = new HashMap<String, Deque<Pooled<Transport>>>();
+    private final Map<String, Deque<Pooled<XMPPConnection>>> idleConnections = new HashMap<String, Deque<Pooled<XMPPConnection>>>();
+
+    /**
+     * Send a message using every notification method
+     *
+     * @param notifications Notification methods
+     * @param message Change report
+     * @return Outcome of each method, in configuration order
+     */
+    public List<Delivery> dispatch(NotificationMethodConfig[] notifications, String message) {
+        return dispatch(Arrays.asList(notifications), Collections.nCopies(notifications.length, new Message(message, Collections.<File>emptyList())));
+    }
+
+    /**
+     * Send each notification method its own message
+     *
+     * @param notifications Notification methods
+     * @param messages Message for each method
+     * @return Outcome of each method, in the same order
+     */
+    public List<Delivery> dispatch(List<NotificationMethodConfig> notifications, List<Message> messages) {
+        long start = System.nanoTime();
+        raiseReplyTimeout(notifications);
+        List<Send> tasks = new ArrayList<Send>();
+        List<Future<Void>> sends = new ArrayList<Future<Void>>();
+        List<Events.NotificationSend> events = new ArrayList<Events.NotificationSend>();
+        for (int i = 0; i < notifications.size(); i++) {
+            Events.NotificationSend event = new Events.NotificationSend();
+            event.begin();
+            events.add(event);
+            Send task = new Send(notifications.get(i), messages.get(i));
+            tasks.add(task);
+            sends.add(executor.submit(task));
+        }
+        List<Delivery> deliveries = new ArrayList<Delivery>();
+        for (int i = 0; i < notifications.size(); i++) {
+            NotificationMethodConfig notification = notifications.get(i);
+            long deadline = start + TimeUnit.SECONDS.toNanos(notification.getConnectTimeout() + notification.getTimeout());
+            String error = null;
+            try {
+                sends.get(i).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                error = "interrupted";
+            } catch (ExecutionException ee) {
+                error = ee.getCause().getMessage() == null ? ee.getCause().toString() : ee.getCause().getMessage();
+            } catch (TimeoutException te) {
+                sends.get(i).cancel(true);
+                tasks.get(i).abort();
+                error = "timed out";
+            }
+            Delivery delivery = new Delivery(notification, error, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            deliveries.add(delivery);
+            if (!delivery.isSent()) {
+                Metrics.add(Metrics.NOTIFICATION_FAILURES, "method", notification.getMethod(), 1);
+            }
+            Metrics.observe(Metrics.NOTIFICATION_SECONDS, "method", notification.getMethod(), start);
+            Events.NotificationSend event = events.get(i);
+            event.method = notification.getMethod();
+            event.recipients = notification.getRecipients().length;
+            event.bytes = messages.get(i).getSize();
+            event.sent = delivery.isSent();
+            event.commit();
+        }
+        return deliveries;
+    }
+
+    /**
+     * Stop the notification threads, abandoning any send still running, and
+     * close the idle connections
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (idleTransports) {
+            for (Deque<Pooled<Transport>> transports : idleTransports.values()) {
+                for (Pooled<Transport> transport : transports) {
+                    close(transport.connection);
+                }
+            }
+            idleTransports.clear();
+        }
+        synchronized (idleConnections) {
+            for (Deque<Pooled<XMPPConnection>> connections : idleConnections.values()) {
+                for (Pooled<XMPPConnection> connection : connections) {
+                    connection.connection.disconnect();
+                }
+            }
+            idleConnections.clear();
+        }
+    }
+
+    /**
+     * Smack 3.1 only has a JVM-wide reply timeout. It is raised to the
+     * longest XMPP timeout before any send starts, and never lowered, so
+     * methods running at the same time do not race on it. Each method's own
+     * deadline is enforced by {@link Send#abort()}.
+     */
+    private static synchronized void raiseReplyTimeout(List<NotificationMethodConfig> notifications) {
+        long timeout = 0;
+        for (NotificationMethodConfig notification : notifications) {
+            if (notification.getMethod().equals("xmpp")) {
+                timeout = Math.max(timeout, TimeUnit.SECONDS.toMillis(notification.getTimeout()));
+            }
+        }
+        if (timeout > 0 && timeout > SmackConfiguration.getPacketReplyTimeout()) {
+            SmackConfiguration.setPacketReplyTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Send a message using one notification method
+     *
+     * @param notification Notification method
+     * @param message Change report
+     * @param send Task the connection used is attached to
+     */
+    private void send(NotificationMethodConfig notification, Message message, Send send) throws MessagingException, XMPPException {
+        //SMTP Notification
+        if (notification.getMethod().equals("smtp")) {
+            sendMail(notification, "osRecorder notification", message, send);
+        }
+        //XMPP Notification
+        if (notification.getMethod().equals("xmpp")) {
+            StringBuilder text = new StringBuilder(message.getText());
+            for (File patch : message.getPatches()) {
+                text.append("Full diff: ").append(patch.getAbsolutePath()).append('\n');
+            }
+            sendXMPP(notification, text.toString(), send);
+        }
+    }
+
+    /**
+     * Send e-mail notification
+     *
+     * @param notification SMTP notification method
+     * @param subject E-Mail Subject
+     * @param message Notification message, any patches are attached
+     * @param send Task the connection used is attached to
+     */
+    private void sendMail(NotificationMethodConfig notification, String subject, Message message, Send send) throws MessagingException {
+        String key = notification.getServer() + ":" + notification.getPort() + ":" + notification.getConnectTimeout() + ":" + notification.getTimeout();
+        Pooled<Transport> transport = borrowTransport(key, notification, send);
+        boolean reusable = false;
+        try {
+            // create a message
+            MimeMessage msg = new MimeMessage(javax.mail.Session.getInstance(new Properties(), null));
+
+            // set the from and to address
+            msg.setFrom(new InternetAddress(notification.getSender()));
+            InternetAddress[] addressTo = new InternetAddress[notification.getRecipients().length];
+            for (int i = 0; i < addressTo.length; i++) {
+                addressTo[i] = new InternetAddress(notification.getRecipients()[i]);
+            }
+            msg.setRecipients(javax.mail.Message.RecipientType.TO, addressTo);
+
+            // Setting the Subject and Content Type
+            msg.setSubject(subject);
+            if (message.getPatches().isEmpty()) {
+                msg.setText(message.getText(), "UTF-8");
+            } else {
+                MimeBodyPart body = new MimeBodyPart();
+                body.setText(message.getText(), "UTF-8");
+                MimeBodyPart attachment = new MimeBodyPart();
+                attachment.setDataHandler(new DataHandler(new PatchSource(message.getPatches())));
+                attachment.setFileName("osrecorder.patch.gz");
+                //Read from disk while sending, base64 needs no scan of the content first
+                attachment.setHeader("Content-Transfer-Encoding", "base64");
+                MimeMultipart parts = new MimeMultipart();
+                parts.addBodyPart(body);
+                parts.addBodyPart(attachment);
+                msg.setContent(parts);
+            }
+            msg.saveChanges();
+
+            if (osRecorder.verbose) {
+                System.out.println("\n-- SMTP Notification --");
+                System.out.println("Sending E-Mail using SMTP server " + notification.getServer());
+                System.out.println("Recipients:");
+                for (String recipient : notification.getRecipients()) {
+                    System.out.println("    " + recipient);
+                }
+            }
+            transport.connection.sendMessage(msg, addressTo);
+            reusable = true;
+        } finally {
+            if (reusable) {
+                release(idleTransports, key, transport);
+            } else {
+                close(transport.connection);
+            }
+        }
+    }
+
+    /**
+     * Take an idle SMTP connection that still answers, or open a new one
+     */
+    private Pooled<Transport> borrowTransport(String key, NotificationMethodConfig notification, Send send) throws MessagingException {
+        Pooled<Transport> transport;
+        while ((transport = borrow(idleTransports, key)) != null) {
+            send.attach(transport.sockets);
+            //Sends a NOOP to check the server has not dropped the connection
+            if (transport.connection.isConnected()) {
+                return transport;
+            }
+            close(transport.connection);
+        }
+        //Set the host smtp address and timeouts
+        Properties props = new Properties();
+        props.put("mail.smtp.host", notification.getServer());
+        if (notification.getPort() > 0) {
+            props.put("mail.smtp.port", Integer.toString(notification.getPort()));
+        }
+        props.put("mail.smtp.connectiontimeout", Long.toString(TimeUnit.SECONDS.toMillis(notification.getConnectTimeout())));
+        props.put("mail.smtp.timeout", Long.toString(TimeUnit.SECONDS.toMillis(notification.getTimeout())));
+        Sockets sockets = new Sockets(notification.getConnectTimeout());
+        props.put("mail.smtp.socketFactory", sockets);
+        props.put("mail.smtp.socketFactory.fallback", "false");
+        send.attach(sockets);
+
+        //Each server gets its own session, the default session keeps the first server it was given
+        Transport connection = javax.mail.Session.getInstance(props, null).getTransport("smtp");
+        connection.connect();
+        return new Pooled<Transport>(connection, sockets);
+    }
+
+    private static void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException me) {
+            //Connection is being discarded anyway
+        }
+    }
+
+    /**
+     * Send XMPP notification
+     *
+     * @param notification XMPP notification method
+     * @param text Notification message
+     * @param send Task the connection used is attached to
+     */
+    private void sendXMPP(NotificationMethodConfig notification, String text, Send send) throws XMPPException {
+        String key = notification.getServer() + ":" + notification.getUsername() + ":" + notification.getConnectTimeout();
+        Pooled<XMPPConnection> connection = borrowConnection(key, notification, send);
+        boolean reusable = false;
+        try {
+            ChatManager chatmanager = connection.connection.getChatManager();
+            for (String recipient : notification.getRecipients()) {
+                Chat chat = chatmanager.createChat(recipient, new MessageListener() {
+
+                    @Override
+                    public void processMessage(Chat chat, org.jivesoftware.smack.packet.Message message) {
+                        //System.out.println("Received message: " + message);
+                    }
+                });
+                chat.sendMessage(text);
+            }
+            if (osRecorder.verbose) {
+                System.out.println("\n-- XMPP Notification --");
+                System.out.println("Sending XMPP message using XMPP server " + notification.getServer());
+                System.out.println("Recipients:");
+                for (String recipient : notification.getRecipients()) {
+                    System.out.println("    " + recipient);
+                }
+            }
+            reusable = true;
+        } finally {
+            if (reusable) {
+                release(idleConnections, key, connection);
+            } else {
+                connection.connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Take an idle XMPP connection that is still logged in, or open a new one
+     */
+    private Pooled<XMPPConnection> borrowConnection(String key, NotificationMethodConfig notification, Send send) throws XMPPException {
+        Pooled<XMPPConnection> pooled;
+        while ((pooled = borrow(idleConnections, key)) != null) {
+            send.attach(pooled.sockets);
+            if (pooled.connection.isConnected() && pooled.connection.isAuthenticated()) {
+                return pooled;
+            }
+            pooled.connection.disconnect();
+        }
+        Sockets sockets = new Sockets(notification.getConnectTimeout());
+        send.attach(sockets);
+        ConnectionConfiguration config = new ConnectionConfiguration(notification.getServer());
+        config.setSocketFactory(sockets);
+        XMPPConnection connection = new XMPPConnection(config);
+        try {
+            connection.connect();
+            connection.login(notification.getUsername(), notification.getPassword());
+        } catch (XMPPException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return new Pooled<XMPPConnection>(connection, sockets);
+    }
+
+    private static <T> T borrow(Map<String, Deque<T>> idle, String key) {
+        synchronized (idle) {
+            Deque<T> connections = idle.get(key);
+            return connections == null ? null : connections.pollFirst();
+        }
+    }
+
+    /**
+     * Return a connection to the pool once a send has succeeded
+     */
+    private static <T> void release(Map<String, Deque<T>> idle, String key, T connection) {
+        synchronized (idle) {
+            Deque<T> connections = idle.get(key);
+            if (connections == null) {
+                connections = new ArrayDeque<T>();
+                idle.put(key, connections);
+            }
+            connections.addFirst(connection);
+        }
+    }
+
+    /**
+     * Sends a message using one notification method. The sockets of the
+     * connection in use are attached, so the send can be cut off once its
+     * deadline has passed.
+     */
+    private class Send implements Callable<Void> {
+
+        private NotificationMethodConfig notification;
+        private Message message;
+        private Sockets sockets;
+        private boolean aborted;
+
+        Send(NotificationMethodConfig notification, Message message) {
+            this.notification = notification;
+            this.message = message;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            send(notification, message, this);
+            return null;
+        }
+
+        synchronized void attach(Sockets sockets) {
+            this.sockets = sockets;
+            if (aborted) {
+                sockets.close();
+            }
+        }
+
+        /**
+         * Close the connection in use, failing the send wherever it is blocked
+         */
+        synchronized void abort() {
+            aborted = true;
+            if (sockets != null) {
+                sockets.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the sockets of one connection with its connect timeout, and
+     * closes them when a send using the connection is abandoned
+     */
+    private static class Sockets extends SocketFactory {
+
+        private int connectTimeout;
+        private Socket socket;
+        private boolean closed;
+
+        /**
+         * Constructor
+         *
+         * @param connectTimeout Connect timeout in seconds
+         */
+        Sockets(long connectTimeout) {
+            this.connectTimeout = (int) Math.min(TimeUnit.SECONDS.toMillis(connectTimeout), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized Socket createSocket() throws IOException {
+            if (closed) {
+                throw new SocketException("Send abandoned");
+            }
+            socket = new Socket();
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket created = createSocket();
+            created.connect(new InetSocketAddress(host, port), connectTimeout);
+            return created;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            Socket created = createSocket();
+            created.connect(new InetSocketAddress(host, port), connectTimeout);
+            return created;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            Socket created = createSocket();
+            created.bind(new InetSocketAddress(localHost, localPort));
+            created.connect(new InetSocketAddress(host, port), connectTimeout);
+            return created;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort) throws IOException {
+            Socket created = createSocket();
+            created.bind(new InetSocketAddress(localHost, localPort));
+            created.connect(new InetSocketAddress(host, port), connectTimeout);
+            return created;
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    //Connection is being discarded anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Idle connection with the sockets it was opened on
+     */
+    private static class Pooled<T> {
+
+        private T connection;
+        private Sockets sockets;
+
+        Pooled(T connection, Sockets sockets) {
+            this.connection = connection;
+            this.sockets = sockets;
+        }
+    }
+
+    /**
+     * Message for one notification method
+     */
+    public static class Message {
+
+        private String text;
+        private List<File> patches;
+
+        /**
+         * Constructor
+         *
+         * @param text Message text
+         * @param patches Gzipped patches to attach, or point to for methods without attachments
+         */
+        public Message(String text, List<File> patches) {
+            this.text = text;
+            this.patches = patches;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public List<File> getPatches() {
+            return patches;
+        }
+
+        /**
+         * @return Bytes of text and attached patches
+         */
+        public long getSize() {
+            long size = text.getBytes(StandardCharsets.UTF_8).length;
+            for (File patch : patches) {
+                size += patch.length();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Streams gzipped patches from disk as one attachment. Concatenated gzip
+     * files are a valid gzip file, so they are sent back to back.
+     */
+    private static class PatchSource implements DataSource {
+
+        private List<File> patches;
+
+        PatchSource(List<File> patches) {
+            this.patches = patches;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            List<InputStream> streams = new ArrayList<InputStream>();
+            try {
+                for (File patch : patches) {
+                    streams.add(new BufferedInputStream(new FileInputStream(patch), 65536));
+                }
+            } catch (IOException ioe) {
+                for (InputStream stream : streams) {
+                    stream.close();
+                }
+                throw ioe;
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Patches are read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/gzip";
+        }
+
+        @Override
+        public String getName() {
+            return "osrecorder.patch.gz";
+        }
+    }
+
+    /**
+     * Outcome of sending a message using one notification method
+     */
+    public static class Delivery {
+
+        private NotificationMethodConfig notification;
+        private String error;
+        private long latency;
+
+        Delivery(NotificationMethodConfig notification, String error, long latency) {
+            this.notification = notification;
+            this.error = error;
+            this.latency = latency;
+        }
+
+        public NotificationMethodConfig getNotification() {
+            return notification;
+        }
+
+        /**
+         * @return Message sent within the timeouts
+         */
+        public boolean isSent() {
+            return error == null;
+        }
+
+        /**
+         * @return Reason the message was not sent, null if it was
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return Milliseconds from the start of the dispatch until the method finished or gave up
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return notification.getMethod() + " via " + notification.getServer() + ": "
+                    + (isSent() ? "sent" : "failed (" + error + ")") + " in " + latency + " ms";
+        }
+    }
+}
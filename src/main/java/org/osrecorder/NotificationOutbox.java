@@ -0,0 +1,828 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.osrecorder.config.NotificationMethodConfig;
+
+/**
+ * Durable queue of change reports waiting to be sent. Recording appends a
+ * report to the journal and syncs it, which is all a run has to wait for;
+ * {@link #drain} later sends every report to each notification method that
+ * has not had it yet, retrying failed methods with exponential backoff until
+ * they succeed. A report is only marked delivered after the send returns, so
+ * a crash in between sends it again rather than losing it.
+ *
+ * Journal layout (all integers big-endian):
+ * <pre>
+ * header   int magic, long generation, long lastId, long end, int crc32
+ * record   byte type, long id, short keyLength, byte[] key (UTF-8),
+ *          int attempts, long nextAttempt, int messageLength,
+ *          byte[] message (UTF-8), int crc32 of the preceding fields
+ * </pre>
+ * Records are appended after the end recorded in the header, synced, and
+ * then committed by rewriting the header, so queueing a report never reads
+ * the rest of the journal. Anything past the end, such as a record torn by
+ * a crash, is ignored and overwritten. A header that fails its check is
+ * rebuilt by scanning the records. The generation changes whenever the
+ * journal is rewritten, so a drain knows whether it can read on from where
+ * it stopped.
+ *
+ * ENQUEUE records carry a message, DELIVERED and RETRY records the key of
+ * the notification method they apply to. Only message offsets are kept in
+ * memory. The journal is rewritten with just the pending reports once
+ * delivered records dominate it, and removed when nothing is pending.
+ * Processes sharing a datadir serialise on a lock file, which a drain only
+ * holds between sends.
+ *
+ * A notification method with a digest window gets every report pending for
+ * it as one {@link NotificationDigest} once the oldest has waited that long.
+ * When patches are kept, the full changes behind each report, which the diff
+ * limits do not cut short, are also stored gzipped so methods can attach
+ * them, or point to them, instead of sending the diffs inline.
+ *
+ * @author Alan Snelson
+ */
+public class NotificationOutbox {
+
+    private static final byte ENQUEUE = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte RETRY = 3;
+
+    private static final int MAGIC = 0x4f534f42;
+    private static final int HEADER_SIZE = 32;
+
+    private File journal;
+    private File lockFile;
+    private long retryInterval;
+    private long maxRetryInterval;
+    private long nextAttempt = Long.MAX_VALUE;
+    private File patchDir;
+    private long patchRetention;
+    private Random generations = new Random();
+    //Serialises drains within this process, enqueue only waits on the journal lock
+    private final Object draining = new Object();
+
+    /**
+     * Constructor
+     *
+     * @param dir Folder holding the journal
+     * @param retryInterval Seconds before the first retry of a failed method
+     * @param maxRetryInterval Longest wait in seconds between retries
+     * @param patchDir Folder keeping a gzipped patch of every report, null to keep none
+     * @param patchRetention Days patches are kept
+     */
+    NotificationOutbox(File dir, int retryInterval, int maxRetryInterval, File patchDir, int patchRetention) {
+        this.journal = new File(dir, "outbox");
+        this.lockFile = new File(dir, "outbox.lock");
+        this.retryInterval = TimeUnit.SECONDS.toMillis(Math.max(retryInterval, 1));
+        this.maxRetryInterval = TimeUnit.SECONDS.toMillis(Math.max(maxRetryInterval, retryInterval));
+        this.patchDir = patchDir;
+        this.patchRetention = TimeUnit.DAYS.toMillis(patchRetention);
+    }
+
+    /**
+     * Queue a change report for every notification method
+     *
+     * @param message Change report
+     * @param repo Repository the report was committed to, its patch is kept
+     * when patches are
+     */
+    public synchronized void enqueue(String message, Repository repo) throws IOException {
+        //Diffing the whole commit can take a while, so the patch is written before locking
+        File patch = patchDir == null ? null : writePatch(repo);
+        FileLock lock = lock();
+        try {
+            Header header = readHeader();
+            //Ids are enqueue times, made unique within the journal
+            long id = Math.max(System.currentTimeMillis(), header.lastId + 1);
+            if (patch != null) {
+                Files.move(patch.toPath(), patchFile(id).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                patch = null;
+            }
+            header.lastId = id;
+            append(header, record(ENQUEUE, id, "", 0, 0, message.getBytes(ScanIndex.UTF8)));
+        } finally {
+            unlock(lock);
+            if (patch != null) {
+                patch.delete();
+            }
+        }
+    }
+
+    private File patchFile(long id) {
+        return new File(patchDir, id + ".patch.gz");
+    }
+
+    /**
+     * Store the full changes of the last commit as a gzipped patch. Unlike
+     * the report they are not cut short by the diff limits.
+     *
+     * @return Patch, null if it could not be written
+     */
+    private File writePatch(Repository repo) {
+        File patch = null;
+        try {
+            if (!patchDir.isDirectory() && !patchDir.mkdirs() && !patchDir.isDirectory()) {
+                throw new IOException("Unable to create patch folder: " + patchDir);
+            }
+            patch = File.createTempFile("enqueue", ".patch.gz", patchDir);
+            try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(patch), 65536), ScanIndex.UTF8)) {
+                repo.writePatch(out);
+            }
+            return patch;
+        } catch (IOException ioe) {
+            //The report is still sent, inline
+            System.err.println("Unable to keep patch: " + ioe.getMessage());
+            if (patch != null) {
+                patch.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Send every pending report to the notification methods due an attempt.
+     * Methods with a digest window get all their pending reports as one
+     * digest once the oldest has waited for the window. Once a method fails,
+     * the rest of its reports wait for the same retry instead of each being
+     * tried against it. The journal is unlocked while messages are sent.
+     *
+     * @param notifications Notification methods
+     * @param dispatcher Sends the reports
+     * @return Outcome of every attempt made
+     */
+    public List<NotificationDispatcher.Delivery> drain(NotificationMethodConfig[] notifications, NotificationDispatcher dispatcher) throws IOException {
+        synchronized (draining) {
+            List<NotificationDispatcher.Delivery> deliveries = new ArrayList<NotificationDispatcher.Delivery>();
+            List<NotificationMethodConfig> methods = new ArrayList<NotificationMethodConfig>();
+            List<Deque<List<Long>>> queues = new ArrayList<Deque<List<Long>>>();
+            State state;
+            synchronized (this) {
+                FileLock lock = lock();
+                try {
+                    state = refresh(null);
+                    long now = System.currentTimeMillis();
+                    for (NotificationMethodConfig notification : notifications) {
+                        Deque<List<Long>> queue = due(state.reports, notification, now);
+                        if (!queue.isEmpty()) {
+                            methods.add(notification);
+                            queues.add(queue);
+                        }
+                    }
+                } finally {
+                    unlock(lock);
+                }
+            }
+            //Each method sends one message at a time, outcomes are made durable before the next
+            while (!methods.isEmpty()) {
+                List<NotificationDispatcher.Message> messages = new ArrayList<NotificationDispatcher.Message>();
+                synchronized (this) {
+                    FileLock lock = lock();
+                    try {
+                        state = refresh(state);
+                        for (int i = methods.size() - 1; i >= 0; i--) {
+                            //Skip reports another process has delivered since
+                            Deque<List<Long>> queue = queues.get(i);
+                            while (!queue.isEmpty() && pending(state.reports, key(methods.get(i)), queue.peekFirst()).isEmpty()) {
+                                queue.pollFirst();
+                            }
+                            if (queue.isEmpty()) {
+                                methods.remove(i);
+                                queues.remove(i);
+                            }
+                        }
+                        for (int i = 0; i < methods.size(); i++) {
+                            Deque<List<Long>> queue = queues.get(i);
+                            queue.addFirst(pending(state.reports, key(methods.get(i)), queue.pollFirst()));
+                            messages.add(message(state.reports, methods.get(i), queue.peekFirst()));
+                        }
+                    } finally {
+                        unlock(lock);
+                    }
+                }
+                if (methods.isEmpty()) {
+                    break;
+                }
+                List<NotificationDispatcher.Delivery> round = dispatcher.dispatch(methods, messages);
+                deliveries.addAll(round);
+                synchronized (this) {
+                    FileLock lock = lock();
+                    try {
+                        state = refresh(state);
+                        ByteArrayOutputStream records = new ByteArrayOutputStream();
+                        for (int i = 0; i < round.size(); i++) {
+                            record(state.reports, key(methods.get(i)), queues.get(i), round.get(i).isSent(), records);
+                        }
+                        append(state.header, records.toByteArray());
+                    } finally {
+                        unlock(lock);
+                    }
+                }
+                for (int i = methods.size() - 1; i >= 0; i--) {
+                    if (queues.get(i).isEmpty()) {
+                        methods.remove(i);
+                        queues.remove(i);
+                    }
+                }
+            }
+            synchronized (this) {
+                FileLock lock = lock();
+                try {
+                    compact(refresh(state), notifications);
+                } finally {
+                    unlock(lock);
+                }
+            }
+            return deliveries;
+        }
+    }
+
+    /**
+     * Record the outcome of sending the first message queued for a method.
+     * A failure defers every other report queued for it until the same retry.
+     */
+    private void record(Map<Long, Report> reports, String key, Deque<List<Long>> queue, boolean sent, ByteArrayOutputStream records) throws IOException {
+        long retry = 0;
+        for (Long id : queue.pollFirst()) {
+            Attempt attempt = attempt(reports, id, key);
+            if (attempt == null) {
+                //Delivered and compacted by another process
+                continue;
+            }
+            if (sent) {
+                attempt.delivered = true;
+                records.write(record(DELIVERED, id, key, 0, 0, null));
+            } else {
+                attempt.attempts++;
+                attempt.nextAttempt = System.currentTimeMillis() + backoff(attempt.attempts);
+                retry = Math.max(retry, attempt.nextAttempt);
+                records.write(record(RETRY, id, key, attempt.attempts, attempt.nextAttempt, null));
+            }
+        }
+        if (sent) {
+            return;
+        }
+        while (!queue.isEmpty()) {
+            for (Long id : queue.pollFirst()) {
+                Attempt attempt = attempt(reports, id, key);
+                if (attempt != null && !attempt.delivered) {
+                    attempt.nextAttempt = Math.max(attempt.nextAttempt, retry);
+                    records.write(record(RETRY, id, key, attempt.attempts, attempt.nextAttempt, null));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports still waiting to be sent to a method
+     */
+    private static List<Long> pending(Map<Long, Report> reports, String key, List<Long> ids) {
+        List<Long> pending = new ArrayList<Long>(ids.size());
+        for (Long id : ids) {
+            Report report = reports.get(id);
+            Attempt attempt = report == null ? null : report.attempts.get(key);
+            if (report != null && (attempt == null || !attempt.delivered)) {
+                pending.add(id);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Delivery state of a report for a method, null if the report is gone
+     */
+    private static Attempt attempt(Map<Long, Report> reports, Long id, String key) {
+        Report report = reports.get(id);
+        if (report == null) {
+            return null;
+        }
+        Attempt attempt = report.attempts.get(key);
+        if (attempt == null) {
+            attempt = new Attempt();
+            report.attempts.put(key, attempt);
+        }
+        return attempt;
+    }
+
+    /**
+     * Reports a notification method is due now, one message each oldest
+     * first, or all in one message for a digest
+     */
+    private Deque<List<Long>> due(TreeMap<Long, Report> reports, NotificationMethodConfig notification, long now) {
+        String key = key(notification);
+        Deque<List<Long>> sends = new ArrayDeque<List<Long>>();
+        if (notification.getDigestWindow() > 0) {
+            if (dueAt(reports, notification) <= now) {
+                List<Long> ids = new ArrayList<Long>();
+                for (Map.Entry<Long, Report> entry : reports.entrySet()) {
+                    Attempt attempt = entry.getValue().attempts.get(key);
+                    if (attempt == null || !attempt.delivered) {
+                        ids.add(entry.getKey());
+                    }
+                }
+                sends.add(ids);
+            }
+            return sends;
+        }
+        for (Map.Entry<Long, Report> entry : reports.entrySet()) {
+            Attempt attempt = entry.getValue().attempts.get(key);
+            if (attempt == null || (!attempt.delivered && attempt.nextAttempt <= now)) {
+                sends.add(Collections.singletonList(entry.getKey()));
+            }
+        }
+        return sends;
+    }
+
+    /**
+     * Build the message sending reports to a notification method
+     */
+    private NotificationDispatcher.Message message(TreeMap<Long, Report> reports, NotificationMethodConfig notification, List<Long> ids) throws IOException {
+        long maxSize = notification.getMaxMessageSize();
+        NotificationDigest digest = new NotificationDigest();
+        String first = null;
+        for (Long id : ids) {
+            String message = readMessage(reports.get(id));
+            first = first == null ? message : first;
+            digest.add(message);
+        }
+        List<File> patches = new ArrayList<File>();
+        if (notification.getAttachDiffs() && patchDir != null) {
+            for (Long id : ids) {
+                if (patchFile(id).isFile()) {
+                    patches.add(patchFile(id));
+                }
+            }
+            if (patches.size() == ids.size()) {
+                //Count lines from the full patches, the reports may be cut short
+                NotificationDigest summary = new NotificationDigest();
+                for (File patch : patches) {
+                    try (Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(patch), 65536), ScanIndex.UTF8)) {
+                        summary.addPatch(in);
+                    }
+                }
+                return new NotificationDispatcher.Message(summary.formatSummary(maxSize), patches);
+            }
+            //Reports queued before patches were kept go inline
+            patches.clear();
+        }
+        String message = first;
+        if (ids.size() > 1 || notification.getDigestWindow() > 0 || (maxSize > 0 && message.getBytes(ScanIndex.UTF8).length > maxSize)) {
+            message = digest.format(maxSize);
+        }
+        return new NotificationDispatcher.Message(message, patches);
+    }
+
+    /**
+     * Time a notification method is next due a message
+     *
+     * @return Milliseconds since the epoch, Long.MAX_VALUE if it has nothing pending
+     */
+    private long dueAt(TreeMap<Long, Report> reports, NotificationMethodConfig notification) {
+        String key = key(notification);
+        long due = Long.MAX_VALUE;
+        long oldest = Long.MAX_VALUE;
+        long retry = 0;
+        for (Map.Entry<Long, Report> entry : reports.entrySet()) {
+            Attempt attempt = entry.getValue().attempts.get(key);
+            if (attempt != null && attempt.delivered) {
+                continue;
+            }
+            long next = attempt == null ? 0 : attempt.nextAttempt;
+            due = Math.min(due, next);
+            //Ids are enqueue times
+            oldest = Math.min(oldest, entry.getKey());
+            retry = Math.max(retry, next);
+        }
+        if (notification.getDigestWindow() > 0 && oldest != Long.MAX_VALUE) {
+            return Math.max(oldest + TimeUnit.SECONDS.toMillis(notification.getDigestWindow()), retry);
+        }
+        return due;
+    }
+
+    /**
+     * Time of the next retry
+     *
+     * @return Milliseconds since the epoch, Long.MAX_VALUE if no retry is due
+     */
+    public synchronized long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    private long backoff(int attempts) {
+        long delay = retryInterval << Math.min(attempts - 1, 30);
+        return delay <= 0 || delay > maxRetryInterval ? maxRetryInterval : delay;
+    }
+
+    /**
+     * Identify a notification method across runs
+     */
+    private static String key(NotificationMethodConfig notification) {
+        StringBuilder key = new StringBuilder(notification.getMethod()).append(':').append(notification.getServer())
+                .append(':').append(notification.getPort());
+        for (String recipient : notification.getRecipients()) {
+            key.append(':').append(recipient);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Take the outbox lock shared by every process using this datadir
+     */
+    private FileLock lock() throws IOException {
+        File dir = lockFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create outbox folder: " + dir);
+        }
+        FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    private static void unlock(FileLock lock) throws IOException {
+        //Closing the channel releases the lock
+        lock.channel().close();
+    }
+
+    /**
+     * Read the journal header, rebuilding it if it is damaged
+     *
+     * @return Header, for an empty journal if there is none yet
+     */
+    private Header readHeader() throws IOException {
+        if (!journal.isFile()) {
+            return new Header(generations.nextLong(), 0, HEADER_SIZE);
+        }
+        ByteBuffer fields = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+            while (fields.hasRemaining() && in.read(fields) >= 0) {
+            }
+            if (!fields.hasRemaining()) {
+                CRC32 crc = new CRC32();
+                crc.update(fields.array(), 0, HEADER_SIZE - 4);
+                Header header = new Header(fields.getLong(4), fields.getLong(12), fields.getLong(20));
+                if (fields.getInt(0) == MAGIC && fields.getInt(28) == (int) crc.getValue()
+                        && header.end >= HEADER_SIZE && header.end <= in.size()) {
+                    return header;
+                }
+            }
+        }
+        System.err.println("Rebuilding notification outbox header: " + journal);
+        TreeMap<Long, Report> reports = new TreeMap<Long, Report>();
+        Header header = new Header(generations.nextLong(), 0, HEADER_SIZE);
+        header.end = replay(reports, HEADER_SIZE, journal.length());
+        header.lastId = reports.isEmpty() ? 0 : reports.lastKey();
+        writeHeader(header);
+        return header;
+    }
+
+    private static ByteBuffer encode(Header header) {
+        ByteBuffer fields = ByteBuffer.allocate(HEADER_SIZE);
+        fields.putInt(MAGIC).putLong(header.generation).putLong(header.lastId).putLong(header.end);
+        CRC32 crc = new CRC32();
+        crc.update(fields.array(), 0, fields.position());
+        fields.putInt((int) crc.getValue());
+        fields.flip();
+        return fields;
+    }
+
+    private void writeHeader(Header header) throws IOException {
+        try (FileChannel out = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer fields = encode(header);
+            while (fields.hasRemaining()) {
+                out.write(fields, fields.position());
+            }
+            out.force(false);
+        }
+    }
+
+    /**
+     * Bring a drain's view of the journal up to date, reading only the
+     * records appended since unless the journal was rewritten
+     *
+     * @param state View from earlier in the drain, null to read it all
+     * @return Current view
+     */
+    private State refresh(State state) throws IOException {
+        Header header = readHeader();
+        if (state == null || state.header.generation != header.generation || state.header.end > header.end) {
+            state = new State();
+            state.header = new Header(header.generation, 0, HEADER_SIZE);
+        }
+        replay(state.reports, state.header.end, header.end);
+        state.header = header;
+        return state;
+    }
+
+    /**
+     * Apply journal records to the pending reports
+     *
+     * @param from Offset of the first record
+     * @param to End of the records, any torn record before it stops the replay
+     * @return Offset after the last intact record
+     */
+    private long replay(Map<Long, Report> reports, long from, long to) throws IOException {
+        if (from >= to) {
+            return from;
+        }
+        long end = from;
+        try (FileInputStream file = new FileInputStream(journal)) {
+            file.getChannel().position(from);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 65536));
+            byte[] chunk = new byte[65536];
+            while (end < to) {
+                CRC32 crc = new CRC32();
+                byte type;
+                long id;
+                String key;
+                int attempts;
+                long next;
+                int length;
+                long offset;
+                try {
+                    type = in.readByte();
+                    id = in.readLong();
+                    byte[] keyBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(keyBytes);
+                    key = new String(keyBytes, ScanIndex.UTF8);
+                    attempts = in.readInt();
+                    next = in.readLong();
+                    length = in.readInt();
+                    offset = end + 27 + keyBytes.length;
+                    if (length < 0 || offset + length + 4 > to) {
+                        break;
+                    }
+                    ByteBuffer fields = ByteBuffer.allocate(27 + keyBytes.length);
+                    fields.put(type).putLong(id).putShort((short) keyBytes.length).put(keyBytes)
+                            .putInt(attempts).putLong(next).putInt(length);
+                    crc.update(fields.array(), 0, fields.position());
+                    //Only the offset of the message is kept
+                    for (int remaining = length; remaining > 0; ) {
+                        int read = Math.min(remaining, chunk.length);
+                        in.readFully(chunk, 0, read);
+                        crc.update(chunk, 0, read);
+                        remaining -= read;
+                    }
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    end = offset + length + 4;
+                } catch (EOFException eofe) {
+                    break;
+                }
+                Report report = reports.get(id);
+                if (type == ENQUEUE) {
+                    reports.put(id, new Report(offset, length));
+                } else if (report != null) {
+                    Attempt attempt = report.attempts.get(key);
+                    if (attempt == null) {
+                        attempt = new Attempt();
+                        report.attempts.put(key, attempt);
+                    }
+                    attempt.delivered = type == DELIVERED;
+                    attempt.attempts = attempts;
+                    attempt.nextAttempt = next;
+                }
+            }
+        }
+        if (end < to) {
+            System.err.println("Ignoring incomplete notification outbox record: " + journal);
+        }
+        return end;
+    }
+
+    /**
+     * Read the message of a queued report, with the journal locked
+     */
+    private String readMessage(Report report) throws IOException {
+        byte[] message = new byte[report.length];
+        try (RandomAccessFile in = new RandomAccessFile(journal, "r")) {
+            in.seek(report.offset);
+            in.readFully(message);
+        }
+        return new String(message, ScanIndex.UTF8);
+    }
+
+    private static byte[] record(byte type, long id, String key, int attempts, long nextAttempt, byte[] message) throws IOException {
+        byte[] keyBytes = key.getBytes(ScanIndex.UTF8);
+        byte[] messageBytes = message == null ? new byte[0] : message;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(31 + keyBytes.length + messageBytes.length);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(attempts);
+        out.writeLong(nextAttempt);
+        out.writeInt(messageBytes.length);
+        out.write(messageBytes);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Write records after the end of the journal, sync them, then commit
+     * them by moving the end in the header
+     *
+     * @param header Header of the journal, its end is advanced
+     */
+    private void append(Header header, byte[] records) throws IOException {
+        if (records.length == 0) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            long position = header.end;
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            out.force(false);
+            header.end = position;
+            ByteBuffer fields = encode(header);
+            while (fields.hasRemaining()) {
+                out.write(fields, fields.position());
+            }
+            out.force(false);
+        }
+    }
+
+    /**
+     * Drop delivered reports, rewriting the journal once they take up most of it
+     */
+    private void compact(State state, NotificationMethodConfig[] notifications) throws IOException {
+        long live = 0;
+        nextAttempt = Long.MAX_VALUE;
+        for (NotificationMethodConfig notification : notifications) {
+            nextAttempt = Math.min(nextAttempt, dueAt(state.reports, notification));
+        }
+        Map<Long, Report> pending = new TreeMap<Long, Report>();
+        for (Map.Entry<Long, Report> entry : state.reports.entrySet()) {
+            Report report = entry.getValue();
+            boolean delivered = true;
+            for (NotificationMethodConfig notification : notifications) {
+                Attempt attempt = report.attempts.get(key(notification));
+                if (attempt == null || !attempt.delivered) {
+                    delivered = false;
+                }
+            }
+            if (!delivered) {
+                pending.put(entry.getKey(), report);
+                live += report.length;
+            }
+        }
+        Metrics.set(Metrics.OUTBOX_PENDING, pending.size());
+        prunePatches();
+        if (pending.isEmpty()) {
+            Files.deleteIfExists(journal.toPath());
+        } else if (state.header.end > 2 * live + 65536) {
+            File tmp = new File(journal.getPath() + ".tmp");
+            Header header = new Header(generations.nextLong(), state.header.lastId, HEADER_SIZE);
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                out.seek(HEADER_SIZE);
+                for (Map.Entry<Long, Report> entry : pending.entrySet()) {
+                    byte[] message = readMessage(entry.getValue()).getBytes(ScanIndex.UTF8);
+                    out.write(record(ENQUEUE, entry.getKey(), "", 0, 0, message));
+                    for (Map.Entry<String, Attempt> attempt : entry.getValue().attempts.entrySet()) {
+                        Attempt saved = attempt.getValue();
+                        out.write(record(saved.delivered ? DELIVERED : RETRY, entry.getKey(), attempt.getKey(), saved.attempts, saved.nextAttempt, null));
+                    }
+                }
+                header.end = out.getFilePointer();
+                out.seek(0);
+                out.write(encode(header).array());
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Remove patches older than the retention period
+     */
+    private void prunePatches() {
+        File[] patches = patchDir == null ? null : patchDir.listFiles();
+        if (patches == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - patchRetention;
+        for (File patch : patches) {
+            if (patch.getName().endsWith(".patch.gz") && patch.lastModified() < cutoff) {
+                patch.delete();
+            }
+        }
+    }
+
+    /**
+     * Journal header
+     */
+    private static class Header {
+
+        private long generation;
+        private long lastId;
+        private long end;
+
+        Header(long generation, long lastId, long end) {
+            this.generation = generation;
+            this.lastId = lastId;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A drain's view of the journal up to the end in its header
+     */
+    private static class State {
+
+        private Header header;
+        private TreeMap<Long, Report> reports = new TreeMap<Long, Report>();
+    }
+
+    /**
+     * Queued change report, by the position of its message in the journal,
+     * and its delivery state by notification method
+     */
+    private static class Report {
+
+        private long offset;
+        private int length;
+        private Map<String, Attempt> attempts = new HashMap<String, Attempt>();
+
+        Report(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Attempt {
+
+        private boolean delivered;
+        private int attempts;
+        private long nextAttempt;
+    }
+}
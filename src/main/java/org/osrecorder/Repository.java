@@ -29,8 +29,13 @@
  */
 package org.osrecorder;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 
+import org.osrecorder.config.FileSetConfig;
+
 /**
  *
  * @author Alan Snelson
@@ -39,13 +44,37 @@ public interface Repository {
 
     public String getDataDir();
 
+    public File getMetaDir();
+
+    public boolean isMirrored();
+
+    public boolean beginBatch();
+
+    public boolean commitBatch();
+
+    public boolean beginRun();
+
+    public String commitRun(String message);
+
+    public void abandonRun();
+
     public boolean processFile(String path);
+
+    public byte[] storeFile(String path, File source);
     
     public boolean removeFile(String path);
 
     public boolean save();
 
+    public boolean save(String message);
+
     public String getDiffs();
+
+    public void setDiffOptions(String path, FileSetConfig fileSetConf);
+
+    public void writeDiffs(Writer out, long fileLimit, long totalLimit) throws IOException;
+
+    public void writePatch(Writer out) throws IOException;
     
     public ArrayList<String> listFiles();
 }
@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Read-only, memory-mapped index of the fingerprints recorded by the last run.
+ *
+ * File layout (all integers big-endian):
+ * <pre>
+ * header   int magic, int version, int count, int crc32
+ * records  short pathLength, byte[] path (UTF-8), long size, long mtime,
+ *          long ctime, long inode, byte hashLength, byte[] hash
+ * table    int offset of each record, records sorted by path bytes
+ * </pre>
+ * Lookups binary search the offset table and compare path bytes in place, so
+ * the index is never loaded onto the heap. The CRC covers everything after
+ * the header; a file with a bad magic, version or CRC is ignored and the
+ * index is rebuilt from scratch by the next save.
+ *
+ * A save that only changes the fingerprints of paths already indexed
+ * overwrites their records in place instead of writing a new file.
+ *
+ * @author Alan Snelson
+ */
+public class ScanIndex {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4f535349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private MappedByteBuffer buffer;
+    private int count;
+    private int table;
+    private long savedAt = Long.MIN_VALUE;
+
+    /**
+     * Constructor
+     *
+     * @param file Index file, may be missing
+     */
+    ScanIndex(File file) {
+        //A previous save could not replace the mapped file (e.g. on Windows)
+        File pending = pendingFile(file);
+        if (pending.isFile()) {
+            try {
+                Files.move(pending.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+        if (file.isFile()) {
+            open(file);
+        }
+    }
+
+    private static File pendingFile(File file) {
+        return new File(file.getPath() + ".new");
+    }
+
+    /**
+     * Map and validate the index file
+     */
+    private void open(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                System.err.println("Rebuilding corrupt scan index: " + file);
+                return;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                System.err.println("Rebuilding incompatible scan index: " + file);
+                return;
+            }
+            int entries = mapped.getInt(8);
+            long tableStart = mapped.capacity() - (long) entries * 4;
+            if (entries < 0 || tableStart < HEADER_SIZE || mapped.getInt(12) != checksum(mapped)) {
+                System.err.println("Rebuilding corrupt scan index: " + file);
+                return;
+            }
+            this.buffer = mapped;
+            this.count = entries;
+            this.table = (int) tableStart;
+            this.savedAt = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException ioe) {
+            System.err.println("Rebuilding unreadable scan index: " + file + " (" + ioe.getMessage() + ")");
+        }
+    }
+
+    private static int checksum(MappedByteBuffer mapped) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[65536];
+        ByteBuffer data = mapped.duplicate();
+        data.position(HEADER_SIZE);
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return Number of indexed paths
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Modification time of the index file in nanoseconds, used for the racy check
+     */
+    public long getSavedAt() {
+        return savedAt;
+    }
+
+    /**
+     * Path of the n-th entry in sort order
+     *
+     * @param index Entry number
+     * @return Path
+     */
+    public String getPath(int index) {
+        return new String(getPathBytes(index), UTF8);
+    }
+
+    /**
+     * UTF-8 encoded path of the n-th entry in sort order
+     *
+     * @param index Entry number
+     * @return Path bytes
+     */
+    public byte[] getPathBytes(int index) {
+        int record = buffer.getInt(table + index * 4);
+        byte[] path = new byte[buffer.getShort(record) & 0xffff];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = buffer.get(record + 2 + i);
+        }
+        return path;
+    }
+
+    /**
+     * Fingerprint of the n-th entry in sort order
+     *
+     * @param index Entry number
+     * @return Fingerprint
+     */
+    public StatCache.Fingerprint getFingerprint(int index) {
+        int pos = fingerprintAt(index);
+        StatCache.Fingerprint fingerprint = new StatCache.Fingerprint(buffer.getLong(pos), buffer.getLong(pos + 8),
+                buffer.getLong(pos + 16), buffer.getLong(pos + 24));
+        int hashLength = buffer.get(pos + 32) & 0xff;
+        if (hashLength > 0) {
+            fingerprint.hash = new byte[hashLength];
+            for (int i = 0; i < hashLength; i++) {
+                fingerprint.hash[i] = buffer.get(pos + 33 + i);
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Offset of the fingerprint fields of the n-th entry in sort order
+     */
+    private int fingerprintAt(int index) {
+        int record = buffer.getInt(table + index * 4);
+        return record + 2 + (buffer.getShort(record) & 0xffff);
+    }
+
+    /**
+     * Find the entry for a path
+     *
+     * @param path UTF-8 encoded path
+     * @return Entry number or -(insertion point) - 1 if not indexed
+     */
+    public int find(byte[] path) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(buffer.getInt(table + mid * 4), path);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int compareAt(int record, byte[] path) {
+        int length = buffer.getShort(record) & 0xffff;
+        int common = Math.min(length, path.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (buffer.get(record + 2 + i) & 0xff) - (path[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - path.length;
+    }
+
+    /**
+     * Compare UTF-8 encoded paths in index order
+     *
+     * @param a First path
+     * @param b Second path
+     * @return Negative, zero or positive as for Comparator
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Write a new index file
+     *
+     * @param file Index file to replace
+     * @param count Number of entries
+     * @param entries Entries in index order
+     */
+    static void write(File file, int count, Entries entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        int[] offsets = new int[count];
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536), crc))) {
+            //Header is written last
+            byte[] header = new byte[HEADER_SIZE];
+            out.write(header);
+            crc.reset();
+            int pos = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                entries.next();
+                byte[] path = entries.getPath();
+                StatCache.Fingerprint fingerprint = entries.getFingerprint();
+                int hashLength = fingerprint.hash == null ? 0 : fingerprint.hash.length;
+                offsets[i] = pos;
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeLong(fingerprint.size);
+                out.writeLong(fingerprint.mtime);
+                out.writeLong(fingerprint.ctime);
+                out.writeLong(fingerprint.inode);
+                out.writeByte(hashLength);
+                if (hashLength > 0) {
+                    out.write(fingerprint.hash);
+                }
+                pos += 2 + path.length + 33 + hashLength;
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(count);
+            raf.writeInt((int) crc.getValue());
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            //The current index is still mapped, pick the new one up on the next run
+            Files.move(tmp.toPath(), pendingFile(file).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Overwrite the fingerprints of indexed paths in place. No record moves,
+     * so this only works if every path is already indexed with a hash of the
+     * same length. Entries that were racily clean at the last save, and are
+     * not updated, get their mtime smudged. Their content is then still
+     * checked once the new save time makes them look clean. The CRC is
+     * written last, so an interrupted update fails the check and the index
+     * is rebuilt.
+     *
+     * @param file Index file this index was read from
+     * @param fingerprints New fingerprints by UTF-8 encoded path, in index order
+     * @return False, with nothing written, if a new index is needed instead
+     */
+    boolean update(File file, SortedMap<byte[], StatCache.Fingerprint> fingerprints) throws IOException {
+        if (buffer == null) {
+            return false;
+        }
+        int[] updated = new int[fingerprints.size()];
+        int n = 0;
+        for (Map.Entry<byte[], StatCache.Fingerprint> fingerprint : fingerprints.entrySet()) {
+            int entry = find(fingerprint.getKey());
+            byte[] hash = fingerprint.getValue().hash;
+            if (entry < 0 || (buffer.get(fingerprintAt(entry) + 32) & 0xff) != (hash == null ? 0 : hash.length)) {
+                return false;
+            }
+            updated[n++] = entry;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != buffer.capacity()) {
+                //Replaced since it was mapped
+                return false;
+            }
+            ByteBuffer smudged = ByteBuffer.allocate(8).putLong(0, StatCache.SMUDGED);
+            Iterator<StatCache.Fingerprint> values = fingerprints.values().iterator();
+            n = 0;
+            for (int entry = 0; entry < count; entry++) {
+                int pos = fingerprintAt(entry);
+                if (n < updated.length && updated[n] == entry) {
+                    writeFully(channel, encode(values.next()), pos);
+                    n++;
+                } else if (buffer.getLong(pos + 8) >= savedAt) {
+                    writeFully(channel, smudged.duplicate(), pos + 8);
+                }
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer chunk = ByteBuffer.allocate(65536);
+            long position = HEADER_SIZE;
+            int read;
+            while ((read = channel.read(chunk, position)) > 0) {
+                chunk.flip();
+                crc.update(chunk);
+                chunk.clear();
+                position += read;
+            }
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(0, (int) crc.getValue());
+            writeFully(channel, header, 12);
+        }
+        return true;
+    }
+
+    /**
+     * Fingerprint fields of a record, from size to hash
+     */
+    private static ByteBuffer encode(StatCache.Fingerprint fingerprint) {
+        int hashLength = fingerprint.hash == null ? 0 : fingerprint.hash.length;
+        ByteBuffer fields = ByteBuffer.allocate(33 + hashLength);
+        fields.putLong(fingerprint.size).putLong(fingerprint.mtime).putLong(fingerprint.ctime).putLong(fingerprint.inode);
+        fields.put((byte) hashLength);
+        if (hashLength > 0) {
+            fields.put(fingerprint.hash);
+        }
+        fields.flip();
+        return fields;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Source of entries for a new index
+     */
+    interface Entries {
+
+        /**
+         * Advance to the next entry
+         *
+         * @return False when there are no more entries
+         */
+        boolean next();
+
+        /**
+         * @return UTF-8 encoded path of the current entry
+         */
+        byte[] getPath();
+
+        /**
+         * @return Fingerprint of the current entry
+         */
+        StatCache.Fingerprint getFingerprint();
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent per-file fingerprints used to detect modified files.
+ *
+ * A fingerprint holds the size, modification time and change time in
+ * nanoseconds, the inode and (when known) the git blob id of the content
+ * last stored in the repository. A file
+ * whose metadata matches its fingerprint costs one stat and no read. The
+ * content is only hashed when the metadata is ambiguous: the times or inode
+ * changed but the size did not, or the file is racily clean because it was
+ * modified at or after the moment the cache was last written (the same rule
+ * git applies to its index).
+ *
+ * Fingerprints from previous runs are read from the memory-mapped
+ * {@link ScanIndex}; only this run's changes are held on the heap until they
+ * are saved by {@link #save()}. A run that changed nothing writes nothing.
+ * Changes to paths already indexed are written into the index in place.
+ * Only added or removed paths need a new index merged from the old one.
+ *
+ * @author Alan Snelson
+ */
+public class StatCache {
+
+    private static final boolean UNIX = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private File file;
+    private ScanIndex index;
+    private Map<String, Fingerprint> updates = new ConcurrentHashMap<String, Fingerprint>();
+
+    private static final Fingerprint REMOVED = new Fingerprint(-1, -1, -1, -1);
+
+    //mtime of an entry that was racily clean when the index was rewritten,
+    //it never matches a file so the content is compared
+    static final long SMUDGED = Long.MIN_VALUE;
+
+    /**
+     * Constructor
+     *
+     * @param file Scan index file, created on first save
+     */
+    StatCache(File file) {
+        this.file = file;
+        this.index = new ScanIndex(file);
+    }
+
+    /**
+     * Fingerprint recorded for a path, checking this run's updates first
+     */
+    private Fingerprint get(String path) {
+        Fingerprint update = updates.get(path);
+        if (update != null) {
+            return update == REMOVED ? null : update;
+        }
+        int entry = index.find(path.getBytes(ScanIndex.UTF8));
+        return entry < 0 ? null : index.getFingerprint(entry);
+    }
+
+    /**
+     * Write this run's updates to the scan index
+     */
+    public void save() {
+        if (updates.isEmpty()) {
+            //Index on disk is current
+            return;
+        }
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            System.err.println("Failed to create scan index folder: " + file.getParent());
+            return;
+        }
+        //Sort updates in index order
+        TreeMap<byte[], Fingerprint> changes = new TreeMap<byte[], Fingerprint>(new Comparator<byte[]>() {
+
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return ScanIndex.compare(a, b);
+            }
+        });
+        for (Map.Entry<String, Fingerprint> update : updates.entrySet()) {
+            changes.put(update.getKey().getBytes(ScanIndex.UTF8), update.getValue());
+        }
+        if (!changes.containsValue(REMOVED)) {
+            try {
+                if (index.update(file, changes)) {
+                    return;
+                }
+            } catch (IOException ioe) {
+                //Replace the index instead
+                System.err.println(ioe.getMessage());
+            }
+        }
+        //Count merged entries, then stream the merge into the new index
+        int count = 0;
+        Merge merge = new Merge(changes);
+        while (merge.next()) {
+            count++;
+        }
+        try {
+            ScanIndex.write(file, count, new Merge(changes));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Merges the sorted index entries with the sorted updates; a REMOVED
+     * fingerprint in the updates removes the entry. Index entries that were
+     * racily clean are smudged, as the new index is saved later than them.
+     */
+    private class Merge implements ScanIndex.Entries {
+
+        private Iterator<Map.Entry<byte[], Fingerprint>> changes;
+        private Map.Entry<byte[], Fingerprint> change;
+        private byte[] indexPath;
+        private int entry = 0;
+        private byte[] path;
+        private Fingerprint fingerprint;
+
+        Merge(TreeMap<byte[], Fingerprint> changes) {
+            this.changes = changes.entrySet().iterator();
+            this.change = this.changes.hasNext() ? this.changes.next() : null;
+            this.indexPath = entry < index.size() ? index.getPathBytes(entry) : null;
+        }
+
+        @Override
+        public boolean next() {
+            while (change != null || indexPath != null) {
+                int cmp = change == null ? -1 : indexPath == null ? 1 : ScanIndex.compare(indexPath, change.getKey());
+                if (cmp < 0) {
+                    path = indexPath;
+                    fingerprint = index.getFingerprint(entry);
+                    if (fingerprint.mtime >= index.getSavedAt()) {
+                        fingerprint.mtime = SMUDGED;
+                    }
+                    advanceIndex();
+                    return true;
+                }
+                path = change.getKey();
+                fingerprint = change.getValue();
+                change = changes.hasNext() ? changes.next() : null;
+                if (cmp == 0) {
+                    advanceIndex();
+                }
+                if (fingerprint != REMOVED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public byte[] getPath() {
+            return path;
+        }
+
+        @Override
+        public Fingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        private void advanceIndex() {
+            entry++;
+            indexPath = entry < index.size() ? index.getPathBytes(entry) : null;
+        }
+    }
+
+    /**
+     * Check if a file differs from its cached fingerprint
+     *
+     * @param path Repository path used as cache key
+     * @param fingerprint Current fingerprint of the source file
+     * @param source Source file, only read if the metadata is ambiguous
+     * @return True if the file is new or modified
+     */
+    public boolean isModified(String path, Fingerprint fingerprint, File source) {
+        Fingerprint cached = get(path);
+        if (cached == null || cached.size != fingerprint.size) {
+            return true;
+        }
+        boolean racy = cached.mtime >= index.getSavedAt();
+        if (!racy && cached.mtime == fingerprint.mtime && cached.ctime == fingerprint.ctime && cached.inode == fingerprint.inode) {
+            return false;
+        }
+        //Metadata is ambiguous - compare content
+        if (cached.hash == null) {
+            return true;
+        }
+        try {
+            fingerprint.hash = hash(source, fingerprint.size);
+        } catch (IOException ioe) {
+            return true;
+        }
+        if (!Arrays.equals(cached.hash, fingerprint.hash)) {
+            return true;
+        }
+        updates.put(path, fingerprint);
+        return false;
+    }
+
+    /**
+     * Record the fingerprint of a file just stored in the repository
+     *
+     * @param path Repository path used as cache key
+     * @param fingerprint Fingerprint of the source file taken before it was stored
+     * @param id Blob id of the content the repository stored
+     */
+    public void update(String path, Fingerprint fingerprint, byte[] id) {
+        fingerprint.hash = id;
+        updates.put(path, fingerprint);
+    }
+
+    /**
+     * Forget a file removed from the repository
+     *
+     * @param path Repository path used as cache key
+     */
+    public void remove(String path) {
+        updates.put(path, REMOVED);
+    }
+
+    /**
+     * Stat a file
+     *
+     * @param source Source file
+     * @return Current fingerprint (without hash)
+     */
+    public static Fingerprint stat(File source) throws IOException {
+        Path path = source.toPath();
+        if (UNIX) {
+            Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,ino");
+            return new Fingerprint((Long) attrs.get("size"), toNanos((FileTime) attrs.get("lastModifiedTime")),
+                    toNanos((FileTime) attrs.get("ctime")), (Long) attrs.get("ino"));
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Fingerprint(attrs.size(), toNanos(attrs.lastModifiedTime()), toNanos(attrs.creationTime()), 0);
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Git blob id of a file, matching the id the repository stores it under
+     *
+     * @param source Source file
+     * @param size Size the file had when it was stat'ed
+     */
+    private static byte[] hash(File source, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+        digest.update(("blob " + size + "\0").getBytes(ScanIndex.UTF8));
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        try (InputStream in = new FileInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                total += read;
+            }
+        }
+        if (total != size) {
+            throw new IOException("File changed while hashing: " + source);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * File metadata and optional content hash
+     */
+    public static class Fingerprint {
+
+        long size;
+        long mtime;
+        long ctime;
+        long inode;
+        byte[] hash;
+
+        Fingerprint(long size, long mtime, long ctime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.ctime = ctime;
+            this.inode = inode;
+        }
+    }
+}
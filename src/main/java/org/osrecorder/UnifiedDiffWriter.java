@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.incava.util.diff.Difference;
+
+/**
+ * Writes differences between two sets of lines as a unified diff in a single
+ * pass. Differences closer together than twice the context are merged into
+ * one hunk.
+ *
+ * @author Alan Snelson
+ */
+public class UnifiedDiffWriter {
+
+    public static final int DEFAULT_CONTEXT = 3;
+
+    private Appendable out;
+    private int context;
+
+    /**
+     * Constructor
+     *
+     * @param out Destination
+     * @param context Number of unchanged lines around each change
+     */
+    public UnifiedDiffWriter(Appendable out, int context) {
+        this.out = out;
+        this.context = Math.max(0, context);
+    }
+
+    /**
+     * Diff and write two sets of lines
+     *
+     * @param oldLines Original lines
+     * @param newLines Changed lines
+     */
+    public void write(String[] oldLines, String[] newLines) throws IOException {
+        write(oldLines, newLines, new LineDiff(oldLines, newLines).diff());
+    }
+
+    /**
+     * Write differences already computed, deleted lines refer to oldLines and
+     * added lines to newLines
+     *
+     * @param oldLines Original lines
+     * @param newLines Changed lines
+     * @param diffs Differences in line order
+     */
+    public void write(String[] oldLines, String[] newLines, List<Difference> diffs) throws IOException {
+        int first = 0;
+        while (first < diffs.size()) {
+            //Extend the hunk while the next change is within reach of its context
+            int last = first;
+            while (last + 1 < diffs.size()
+                    && oldStart(diffs.get(last + 1)) - oldEnd(diffs.get(last)) <= 2 * context) {
+                last++;
+            }
+            writeHunk(oldLines, newLines, diffs.subList(first, last + 1));
+            first = last + 1;
+        }
+    }
+
+    private void writeHunk(String[] oldLines, String[] newLines, List<Difference> hunk) throws IOException {
+        Difference head = hunk.get(0);
+        Difference tail = hunk.get(hunk.size() - 1);
+        int leading = Math.min(context, Math.min(oldStart(head), newStart(head)));
+        int trailing = Math.min(context, Math.min(oldLines.length - oldEnd(tail), newLines.length - newEnd(tail)));
+        int oldFrom = oldStart(head) - leading;
+        int newFrom = newStart(head) - leading;
+        int oldTo = oldEnd(tail) + trailing;
+        int newTo = newEnd(tail) + trailing;
+
+        out.append("@@ -").append(range(oldFrom, oldTo - oldFrom))
+                .append(" +").append(range(newFrom, newTo - newFrom)).append(" @@\n");
+        int line = oldFrom;
+        for (Difference diff : hunk) {
+            for (; line < oldStart(diff); line++) {
+                out.append(' ').append(oldLines[line]).append('\n');
+            }
+            for (int i = oldStart(diff); i < oldEnd(diff); i++) {
+                out.append('-').append(oldLines[i]).append('\n');
+            }
+            for (int i = newStart(diff); i < newEnd(diff); i++) {
+                out.append('+').append(newLines[i]).append('\n');
+            }
+            line = oldEnd(diff);
+        }
+        for (; line < oldTo; line++) {
+            out.append(' ').append(oldLines[line]).append('\n');
+        }
+    }
+
+    /**
+     * Hunk range as printed by diff(1), one-indexed with an empty range
+     * pointing at the line before it
+     */
+    private static String range(int start, int count) {
+        if (count == 0) {
+            return start + ",0";
+        }
+        return count == 1 ? Integer.toString(start + 1) : (start + 1) + "," + count;
+    }
+
+    private static int oldStart(Difference diff) {
+        return diff.getDeletedStart();
+    }
+
+    private static int oldEnd(Difference diff) {
+        return diff.getDeletedEnd() == Difference.NONE ? diff.getDeletedStart() : diff.getDeletedEnd() + 1;
+    }
+
+    private static int newStart(Difference diff) {
+        return diff.getAddedStart();
+    }
+
+    private static int newEnd(Difference diff) {
+        return diff.getAddedEnd() == Difference.NONE ? diff.getAddedStart() : diff.getAddedEnd() + 1;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.osrecorder.config.FileSetConfig;
+import org.osrecorder.config.osRecorderConfig;
+
+/**
+ * Daemon mode: watches every directory visited by a FileSet scan and records
+ * only the paths reported by the file system (inotify on Linux).
+ *
+ * Events are collected until the file system has been quiet for a short
+ * while and the dirty paths are then recorded in one go. A full scan is run
+ * at start up, every reconcileInterval seconds, when events were lost
+ * (overflow) and when directories are created or removed, which also
+ * refreshes the set of watched directories.
+ *
+ * @author Alan Snelson
+ */
+public class Watcher {
+
+    private static final long QUIET_PERIOD = 2000;
+
+    private osRecorder recorder;
+    private osRecorderConfig config;
+    private Repository repo;
+    private Map<FileSetConfig, FileSetMatcher> matchers = new LinkedHashMap<FileSetConfig, FileSetMatcher>();
+    private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private Map<Path, WatchKey> watched = new HashMap<Path, WatchKey>();
+    private WatchService watchService;
+
+    /**
+     * Constructor
+     *
+     * @param recorder osRecorder instance used to record and notify
+     * @param config osRecorder configuration
+     * @param repo Change repository
+     */
+    Watcher(osRecorder recorder, osRecorderConfig config, Repository repo) {
+        this.recorder = recorder;
+        this.config = config;
+        this.repo = repo;
+        for (FileSetConfig fileSetConf : config.getFileset()) {
+            matchers.put(fileSetConf, new FileSetMatcher(fileSetConf.getInclude(), fileSetConf.getExclude()));
+        }
+    }
+
+    /**
+     * Watch and record until interrupted
+     */
+    public void run() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            long reconcileInterval = TimeUnit.SECONDS.toMillis(Math.max(config.getReconcileInterval(), 1));
+            long nextReconcile = 0;
+            boolean rescan = true;
+            Set<Path> dirty = new LinkedHashSet<Path>();
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (rescan || now >= nextReconcile) {
+                    reconcile();
+                    dirty.clear();
+                    rescan = false;
+                    nextReconcile = now + reconcileInterval;
+                } else if (!dirty.isEmpty()) {
+                    recorder.sendNotifications(config, repo, recorder.record(config, repo, matchers, dirty));
+                    recorder.exportMetrics(config);
+                    dirty.clear();
+                } else if (now >= recorder.getNextRetry()) {
+                    //Retry reports the outbox could not send earlier
+                    recorder.sendNotifications(config, repo, "");
+                    recorder.exportMetrics(config);
+                }
+                //Wait for the first event, then until things calm down
+                long wakeUp = Math.min(nextReconcile, recorder.getNextRetry());
+                WatchKey key = watchService.poll(wakeUp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    rescan |= collect(key, dirty);
+                    key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException cwse) {
+            //Stopped
+        } finally {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Full scan of every FileSet, registering any directory not watched yet
+     */
+    private void reconcile() throws IOException {
+        if (osRecorder.verbose) {
+            System.out.println("Reconciling all FileSets");
+        }
+        Set<Path> dirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        recorder.sendNotifications(config, repo, recorder.record(config, repo, dirs));
+        recorder.exportMetrics(config);
+        //Stop watching directories no longer scanned
+        Iterator<Map.Entry<Path, WatchKey>> entries = watched.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = entries.next();
+            if (!dirs.remove(entry.getKey())) {
+                entry.getValue().cancel();
+                keys.remove(entry.getValue());
+                entries.remove();
+            }
+        }
+        for (Path dir : dirs) {
+            try {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                watched.put(dir, key);
+            } catch (IOException ioe) {
+                System.err.println("I was unable to watch directory: " + dir);
+            }
+        }
+    }
+
+    /**
+     * Collect the paths reported by a watch key
+     *
+     * @return True if a full scan is needed
+     */
+    private boolean collect(WatchKey key, Set<Path> dirty) {
+        boolean rescan = false;
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                rescan = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && path.toFile().isDirectory()) {
+                //New directory, it may need watching
+                rescan = true;
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && watched.containsKey(path)) {
+                //Watched directory removed along with its files
+                rescan = true;
+            }
+            dirty.add(path);
+        }
+        if (!key.reset()) {
+            watched.remove(keys.remove(key));
+            rescan = true;
+        }
+        return rescan;
+    }
+}
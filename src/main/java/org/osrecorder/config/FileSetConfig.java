@@ -38,6 +38,9 @@ public class FileSetConfig {
     private String name;
     private String[] include;
     private String[] exclude;
+    private long maxDiffSize = 1048576;
+    private String diffAlgorithm = "histogram";
+    private int maxEditDistance;
 
     public String getName() {
         return name;
@@ -78,4 +81,28 @@ public class FileSetConfig {
     public void setExclude(String[] value) {
         exclude = value;
     }
+
+    public long getMaxDiffSize() {
+        return maxDiffSize;
+    }
+
+    public void setMaxDiffSize(long value) {
+        maxDiffSize = value;
+    }
+
+    public String getDiffAlgorithm() {
+        return diffAlgorithm;
+    }
+
+    public void setDiffAlgorithm(String value) {
+        diffAlgorithm = value;
+    }
+
+    public int getMaxEditDistance() {
+        return maxEditDistance;
+    }
+
+    public void setMaxEditDistance(int value) {
+        maxEditDistance = value;
+    }
 }
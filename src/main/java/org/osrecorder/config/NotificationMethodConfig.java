@@ -42,6 +42,11 @@ public class NotificationMethodConfig {
     private String[] recipients;
     private String username;
     private String password;
+    private int connectTimeout = 10;
+    private int timeout = 30;
+    private int digestWindow;
+    private long maxMessageSize;
+    private boolean attachDiffs;
 
     public String getUsername() {
         return username;
@@ -83,6 +88,46 @@ public class NotificationMethodConfig {
         port = value;
     }
 
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int value) {
+        connectTimeout = value;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int value) {
+        timeout = value;
+    }
+
+    public int getDigestWindow() {
+        return digestWindow;
+    }
+
+    public void setDigestWindow(int value) {
+        digestWindow = value;
+    }
+
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(long value) {
+        maxMessageSize = value;
+    }
+
+    public boolean getAttachDiffs() {
+        return attachDiffs;
+    }
+
+    public void setAttachDiffs(boolean value) {
+        attachDiffs = value;
+    }
+
     public String getSender() {
         return sender;
     }
@@ -29,6 +29,8 @@
  */
 package org.osrecorder.config;
 
+import org.osrecorder.DiffAlgorithms;
+
 /**
  *
  * @author Alan Snelson
@@ -38,6 +40,18 @@ public class osRecorderConfig {
     private NotificationMethodConfig[] notification;
     private FileSetConfig[] fileset;
     private String datadir;
+    private int scanThreads;
+    private int copyThreads;
+    private int diffThreads;
+    private int reconcileInterval = 3600;
+    private boolean mirror = true;
+    private long diffFileLimit = 262144;
+    private long diffTotalLimit = 4194304;
+    private String metricsFile;
+    private int metricsPort;
+    private int retryInterval = 60;
+    private int maxRetryInterval = 3600;
+    private int patchRetention = 30;
     public String configError = "";
 
     public NotificationMethodConfig getNotification(int index) {
@@ -80,6 +94,102 @@ public class osRecorderConfig {
         this.datadir = value;
     }
 
+    public int getScanThreads() {
+        return this.scanThreads;
+    }
+
+    public void setScanThreads(int value) {
+        this.scanThreads = value;
+    }
+
+    public int getCopyThreads() {
+        return this.copyThreads;
+    }
+
+    public void setCopyThreads(int value) {
+        this.copyThreads = value;
+    }
+
+    public int getDiffThreads() {
+        return this.diffThreads;
+    }
+
+    public void setDiffThreads(int value) {
+        this.diffThreads = value;
+    }
+
+    public int getReconcileInterval() {
+        return this.reconcileInterval;
+    }
+
+    public void setReconcileInterval(int value) {
+        this.reconcileInterval = value;
+    }
+
+    public boolean getMirror() {
+        return this.mirror;
+    }
+
+    public void setMirror(boolean value) {
+        this.mirror = value;
+    }
+
+    public long getDiffFileLimit() {
+        return this.diffFileLimit;
+    }
+
+    public void setDiffFileLimit(long value) {
+        this.diffFileLimit = value;
+    }
+
+    public long getDiffTotalLimit() {
+        return this.diffTotalLimit;
+    }
+
+    public void setDiffTotalLimit(long value) {
+        this.diffTotalLimit = value;
+    }
+
+    public String getMetricsFile() {
+        return this.metricsFile;
+    }
+
+    public void setMetricsFile(String value) {
+        this.metricsFile = value;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    public void setMetricsPort(int value) {
+        this.metricsPort = value;
+    }
+
+    public int getRetryInterval() {
+        return this.retryInterval;
+    }
+
+    public void setRetryInterval(int value) {
+        this.retryInterval = value;
+    }
+
+    public int getMaxRetryInterval() {
+        return this.maxRetryInterval;
+    }
+
+    public void setMaxRetryInterval(int value) {
+        this.maxRetryInterval = value;
+    }
+
+    public int getPatchRetention() {
+        return this.patchRetention;
+    }
+
+    public void setPatchRetention(int value) {
+        this.patchRetention = value;
+    }
+
     public boolean checkConfig() {
         //Check data directory
         if (this.datadir == null) {
@@ -103,6 +213,15 @@ public class osRecorderConfig {
                 }
             }
         }
+        //Check FileSet diff algorithms
+        if (this.fileset != null) {
+            for (FileSetConfig fileSetConf : this.fileset) {
+                if (!DiffAlgorithms.isSupported(fileSetConf.getDiffAlgorithm())) {
+                    configError = "Unknown diffAlgorithm " + fileSetConf.getDiffAlgorithm() + " - use myers, histogram, patience, lcs or incava.";
+                    return false;
+                }
+            }
+        }
         return true;
     }
 }
@@ -29,24 +29,20 @@
  */
 package org.osrecorder;
 
+import com.sun.net.httpserver.HttpServer;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import javax.mail.*;
-import javax.mail.internet.*;
+import jdk.jfr.Recording;
 
 import org.osrecorder.config.osRecorderConfig;
 import org.osrecorder.config.NotificationMethodConfig;
 
 import org.incava.util.diff.*;
 
-import org.jivesoftware.smack.ChatManager;
-import org.jivesoftware.smack.Chat;
-import org.jivesoftware.smack.MessageListener;
-import org.jivesoftware.smack.XMPPConnection;
-import org.jivesoftware.smack.XMPPException;
-
 import org.kohsuke.args4j.*;
 
 import org.yaml.snakeyaml.Yaml;
@@ -67,12 +63,18 @@ public class osRecorder {
     private String osRecorderConfig;
     @Option(name = "-v")
     public static boolean verbose;
+    @Option(name = "--daemon", usage = "Keep running and record changes as they happen")
+    private boolean daemon;
+    @Option(name = "--jfr", usage = "Record a JDK Flight Recorder file of the run")
+    private String jfr;
     // receives other command line parameters than options
     @Argument
     private List<String> arguments = new ArrayList<String>();
     private String notifyMessage = "";
     private Properties properties;
     private String datadir = "";
+    private NotificationDispatcher dispatcher = new NotificationDispatcher();
+    private NotificationOutbox outbox;
 
     /**
      * Constructor
@@ -90,96 +92,39 @@ public class osRecorder {
     }
 
     /**
-     * Send e-mail notification
+     * Return diff output
      *
-     * @param  props    Properties
-     * @param  recipients   E-Mail Recipients
-     * @param  subject  E-Mail Subject
-     * @param  message  Notifiation message
-     * @param  from E-Mail From address
+     * @param  newString New string to diff
+     * @param  oldString Old string to compare against
+     * @return  Diff output
      */
-    private void sendMail(Properties props, List<String> recipients, String subject, String message, String from) throws MessagingException {
-        boolean debug = false;
-
-        // create some properties and get the default Session
-        javax.mail.Session session = javax.mail.Session.getDefaultInstance(props, null);
-        session.setDebug(debug);
-
-        // create a message
-        javax.mail.Message msg = new MimeMessage(session);
-
-        // set the from and to address
-        InternetAddress addressFrom = new InternetAddress(from);
-        msg.setFrom(addressFrom);
-
-        InternetAddress[] addressTo = new InternetAddress[recipients.size()];
-
-        int i = 0;
-        for (String recipient : recipients) {
-            addressTo[i] = new InternetAddress(recipient);
-            i++;
-        }
-        msg.setRecipients(javax.mail.Message.RecipientType.TO, addressTo);
-
-
-        // Optional : You can also set your custom headers in the Email if you Want
-        msg.addHeader("MyHeaderName", "myHeaderValue");
-
-        // Setting the Subject and Content Type
-        msg.setSubject(subject);
-        msg.setContent(message, "text/plain");
-
-        if (verbose) {
-            System.out.println("\n-- SMTP Notification --");
-            System.out.println("Sending E-Mail using SMTP server " + props.get("mail.smtp.host"));
-            System.out.println("Recipients:");
-            for (String recipient : recipients) {
-                System.out.println("    " + recipient);
-            }
-        }
-        Transport.send(msg);
+    public static String printDiffs(String[] newString, String[] oldString) {
+        return printDiffs(newString, oldString, UnifiedDiffWriter.DEFAULT_CONTEXT);
     }
 
     /**
-     * Send XMPP notification
+     * Return diff output
      *
-     * @param  username XMPP server username
-     * @param  password XMPP server password
-     * @param  hostname XMPP Server
-     * @param  recipients Recipients
-     * @param  text Notification message
+     * @param  newString New string to diff
+     * @param  oldString Old string to compare against
+     * @param  context Number of unchanged lines around each change
+     * @return  Diff output
      */
-    private void sendXMPP(String username, String password, String hostname, List<String> recipients, String text) {
-        XMPPConnection connection = new XMPPConnection(hostname);
-        try {
-            connection.connect();
-            connection.login(username, password);
-            ChatManager chatmanager = connection.getChatManager();
-
-            org.jivesoftware.smack.packet.Message message;
-
-            for (String recipient : recipients) {
-                Chat chat = chatmanager.createChat(recipient, new MessageListener() {
+    public static String printDiffs(String[] newString, String[] oldString, int context) {
+        return printDiffs(newString, oldString, context, false);
+    }
 
-                    @Override
-                    public void processMessage(Chat chat, org.jivesoftware.smack.packet.Message message) {
-                        //System.out.println("Received message: " + message);
-                    }
-                });
-                chat.sendMessage(text);
-            }
-            if (verbose) {
-                System.out.println("\n-- XMPP Notification --");
-                System.out.println("Sending XMPP message using XMPP server " + hostname);
-                System.out.println("Recipients:");
-                for (String recipient : recipients) {
-                    System.out.println("    " + recipient);
-                }
-            }
-        }
-        catch (XMPPException e) {
-            System.out.println(e.getMessage());
-        }
+    /**
+     * Return diff output
+     *
+     * @param  newString New string to diff
+     * @param  oldString Old string to compare against
+     * @param  context Number of unchanged lines around each change
+     * @param  incava Use org.incava.util.diff.Diff instead of {@link LineDiff}
+     * @return  Diff output
+     */
+    public static String printDiffs(String[] newString, String[] oldString, int context, boolean incava) {
+        return printDiffs(newString, oldString, context, incava ? "incava" : "lcs", 0);
     }
 
     /**
@@ -187,39 +132,20 @@ public class osRecorder {
      *
      * @param  newString New string to diff
      * @param  oldString Old string to compare against
+     * @param  context Number of unchanged lines around each change
+     * @param  diffAlgorithm Algorithm name, see {@link DiffAlgorithms}
+     * @param  maxEditDistance Edit distance above which a coarse diff is shown, 0 for no limit
      * @return  Diff output
      */
-    public static String printDiffs(String[] newString, String[] oldString) {
-        String unifiedDiff = "";
-        List diffs = ( new Diff(newString, oldString) ).diff();
-        Iterator it = diffs.iterator();
-        while (it.hasNext()) {
-            Difference diff = (Difference) it.next();
-            int delStart = diff.getDeletedStart();
-            int delEnd = diff.getDeletedEnd();
-            int addStart = diff.getAddedStart();
-            int addEnd = diff.getAddedEnd();
-            String from = toString(delStart, delEnd);
-            String to = toString(addStart, addEnd);
-            String type = delEnd != Difference.NONE && addEnd != Difference.NONE ? "c" : ( delEnd == Difference.NONE ? "a" : "d" );
-
-            unifiedDiff += "@@ -" + to + " +" + from + " @@\n";
-
-            if (addEnd != Difference.NONE) {
-                for (int lnum = addStart; lnum <= addEnd; ++lnum) {
-                    unifiedDiff += "-" + " " + oldString[lnum] + "\n";
-                }
-            }
-            if (delEnd != Difference.NONE) {
-                for (int lnum = delStart; lnum <= delEnd; ++lnum) {
-                    unifiedDiff += "+" + " " + newString[lnum] + "\n";
-                }
-                if (addEnd != Difference.NONE) {
-                    unifiedDiff += "\n";
-                }
-            }
+    public static String printDiffs(String[] newString, String[] oldString, int context, String diffAlgorithm, int maxEditDistance) {
+        StringBuilder unifiedDiff = new StringBuilder();
+        try {
+            List<Difference> diffs = DiffAlgorithms.diff(diffAlgorithm, oldString, newString, maxEditDistance);
+            new UnifiedDiffWriter(unifiedDiff, context).write(oldString, newString, diffs);
+        } catch (IOException ioe) {
+            //StringBuilder does not throw
         }
-        return unifiedDiff;
+        return unifiedDiff.toString();
     }
 
     /**
@@ -231,20 +157,6 @@ public class osRecorder {
         return properties.getProperty("application.version");
     }
 
-    private static String toString(int start, int end) {
-        // adjusted, because file lines are one-indexed, not zero.
-
-        StringBuilder buf = new StringBuilder();
-
-        // match the line numbering from diff(1):
-        buf.append(end == Difference.NONE ? start : ( 1 + start ));
-
-        if (end != Difference.NONE && start != end) {
-            buf.append(",").append(1 + end);
-        }
-        return buf.toString();
-    }
-
     /**
      * Main entry point
      * 
@@ -261,7 +173,7 @@ public class osRecorder {
      */
     public void doMain(String[] args) {
 
-        String usage = "Usage: java -jar osRecorder.jar [-c Path to config.yml] [-v]\nOptions:\n    -c  Path to Config.yml\n    -v  Generate verbose output on standard output";
+        String usage = "Usage: java -jar osRecorder.jar [-c Path to config.yml] [-v] [--daemon] [--jfr file.jfr]\nOptions:\n    -c  Path to Config.yml\n    -v  Generate verbose output on standard output\n    --daemon  Keep running and record changes as they happen\n    --jfr  Record a JDK Flight Recorder file of the run";
         CmdLineParser parser = new CmdLineParser(this);
 
         // if you have a wider console, you could increase the value;
@@ -310,40 +222,39 @@ public class osRecorder {
                 System.exit(1);
             }
             datadir = config.getDatadir();
-            Repository gitRepo = new GitRepo(datadir);
-
-            //Process FileSets
-            FileSetConfig[] fileSetConfigs = config.getFileset();
-            for (FileSetConfig fileSetConf : fileSetConfigs) {
-                FileSet fileSet = new FileSet(gitRepo);
-                String fileSetResult = fileSet.processFileSet(fileSetConf);
-                if (!fileSetResult.equals("")) {
-                    notifyMessage += fileSetResult;
+            GitRepo gitRepo = new GitRepo(datadir, config.getMirror());
+            gitRepo.setDiffLimits(config.getDiffFileLimit(), config.getDiffTotalLimit());
+            gitRepo.setDiffThreads(config.getDiffThreads());
+            //Patches are only kept when a notification attaches or links to them
+            File patchDir = null;
+            for (NotificationMethodConfig notification : config.getNotification()) {
+                if (notification.getAttachDiffs()) {
+                    patchDir = new File(gitRepo.getMetaDir(), "patches");
                 }
             }
-
-
-            //Notify if any changes found
-            if (!notifyMessage.equals("")) {
-                NotificationMethodConfig[] notifications = config.getNotification();
-                for (NotificationMethodConfig notification : notifications) {
-                    //SMTP Notification
-                    if (notification.getMethod().equals("smtp")) {
-                        //Set the host smtp address
-                        Properties props = new Properties();
-                        props.put("mail.smtp.host", notification.getServer());
-                        List<String> recipients = new ArrayList<String>();
-                        for (String recipient : notification.getRecipients()) {
-                            recipients.add(recipient);
+            outbox = new NotificationOutbox(gitRepo.getMetaDir(), config.getRetryInterval(), config.getMaxRetryInterval(), patchDir, config.getPatchRetention());
+
+            Recording recording = jfr == null ? null : Events.startRecording(jfr);
+            try {
+                if (daemon) {
+                    HttpServer metricsServer = config.getMetricsPort() > 0 ? Metrics.serve(config.getMetricsPort()) : null;
+                    try {
+                        new Watcher(this, config, gitRepo).run();
+                    } finally {
+                        if (metricsServer != null) {
+                            metricsServer.stop(0);
                         }
-                        sendMail(props, recipients, "osRecorder notification", notifyMessage, notification.getSender());
-                    }
-                    //XMPP Notification
-                    if (notification.getMethod().equals("xmpp")) {
-                        List<String> recipients = new ArrayList<String>();
-                        recipients.addAll(Arrays.asList(notification.getRecipients()));
-                        sendXMPP(notification.getUsername(), notification.getPassword(), notification.getServer(), recipients, notifyMessage);
                     }
+                } else {
+                    notifyMessage = record(config, gitRepo, null);
+                    sendNotifications(config, gitRepo, notifyMessage);
+                    exportMetrics(config);
+                }
+            } finally {
+                dispatcher.shutdown();
+                if (recording != null) {
+                    recording.stop();
+                    recording.close();
                 }
             }
         }
@@ -351,8 +262,223 @@ public class osRecorder {
             System.out.println(ioe.getMessage());
             System.out.println("\n" + usage);
         }
-        catch (MessagingException me) {
-            System.out.println("Failed to send e-mail. Error: " + me.getMessage());
+    }
+
+    /**
+     * Scan every FileSet and record changes
+     *
+     * @param  config  osRecorder configuration
+     * @param  repo  Change repository
+     * @param  watchDirs  Thread-safe set receiving the directories scanned (may be null)
+     * @return  Notification message, empty if nothing changed
+     */
+    String record(osRecorderConfig config, Repository repo, Set<Path> watchDirs) {
+        String message = "";
+
+        //Expand FileSets in parallel
+        FileSetConfig[] fileSetConfigs = config.getFileset();
+        FileScanner scanner = new FileScanner(config.getScanThreads());
+        Map<FileSetConfig, ArrayList<String>> fileSetFiles;
+        long start = System.nanoTime();
+        try {
+            fileSetFiles = scanner.scan(fileSetConfigs, watchDirs);
+        } finally {
+            scanner.shutdown();
+        }
+        Metrics.observe(Metrics.PHASE_SECONDS, "phase", "scan", start);
+        for (FileSetConfig fileSetConf : fileSetConfigs) {
+            Metrics.add(Metrics.FILES_SCANNED, "fileset", fileSetConf.getName(), fileSetFiles.get(fileSetConf).size());
         }
+
+        //Process FileSets in a single run
+        StatCache statCache = new StatCache(new File(repo.getMetaDir(), "scanindex"));
+        FileCopier copier = new FileCopier(config.getCopyThreads());
+        Map<String, List<String>> attribution = new LinkedHashMap<String, List<String>>();
+        FileSet removed = new FileSet(repo, statCache, copier);
+        boolean filesModified = false;
+        repo.beginRun();
+        try {
+            //Files no FileSet includes any more are removed once every FileSet is done
+            LinkedHashSet<String> repoFiles = new LinkedHashSet<String>(repo.listFiles());
+            for (FileSetConfig fileSetConf : fileSetConfigs) {
+                FileSet fileSet = new FileSet(repo, statCache, copier);
+                filesModified |= fileSet.stageFileSet(fileSetConf, fileSetFiles.get(fileSetConf), repoFiles);
+                attribute(attribution, fileSetConf, fileSet);
+            }
+            FileSet.keepUnscanned(repoFiles, scanner.getIncomplete());
+            filesModified |= removed.removeFiles(repoFiles);
+            message = repo.commitRun(filesModified ? commitMessage(attribution, removed.getChanges()) : null);
+        } finally {
+            copier.shutdown();
+            //Only a run that staged every file is committed
+            repo.abandonRun();
+        }
+        saveRun(statCache, message);
+        return message == null ? "" : message;
+    }
+
+    /**
+     * Record changes to individual paths, e.g. those reported by a {@link Watcher}
+     *
+     * @param  config  osRecorder configuration
+     * @param  repo  Change repository
+     * @param  matchers  Compiled include / exclude entries of each FileSet
+     * @param  paths  Paths that may have been created, modified or deleted
+     * @return  Notification message, empty if nothing changed
+     */
+    String record(osRecorderConfig config, Repository repo, Map<FileSetConfig, FileSetMatcher> matchers, Collection<Path> paths) {
+        String message = "";
+        StatCache statCache = new StatCache(new File(repo.getMetaDir(), "scanindex"));
+        FileCopier copier = new FileCopier(config.getCopyThreads());
+        Map<String, List<String>> attribution = new LinkedHashMap<String, List<String>>();
+        boolean filesModified = false;
+        repo.beginRun();
+        try {
+            for (FileSetConfig fileSetConf : config.getFileset()) {
+                FileSetMatcher matcher = matchers.get(fileSetConf);
+                List<String> changed = new ArrayList<String>();
+                List<String> removed = new ArrayList<String>();
+                for (Path path : paths) {
+                    if (matcher.classify(path.toString()).isSelected()) {
+                        if (Files.isRegularFile(path)) {
+                            changed.add(path.toString());
+                        } else if (!Files.exists(path)) {
+                            removed.add(path.toString());
+                        }
+                    }
+                }
+                if (!changed.isEmpty() || !removed.isEmpty()) {
+                    FileSet fileSet = new FileSet(repo, statCache, copier);
+                    filesModified |= fileSet.stageChanges(fileSetConf, changed, removed);
+                    attribute(attribution, fileSetConf, fileSet);
+                }
+            }
+            message = repo.commitRun(filesModified ? commitMessage(attribution, Collections.<String>emptyList()) : null);
+        } finally {
+            copier.shutdown();
+            //Only a run that staged every file is committed
+            repo.abandonRun();
+        }
+        saveRun(statCache, message);
+        return message == null ? "" : message;
+    }
+
+    /**
+     * Keep this run's fingerprints only if its changes were committed, so a
+     * failed run is recorded again by the next one
+     */
+    private static void saveRun(StatCache statCache, String message) {
+        if (message != null) {
+            statCache.save();
+        } else {
+            System.err.println("Failed to record changes, they will be retried on the next run");
+        }
+        finishRun();
+    }
+
+    private static void finishRun() {
+        Metrics.add(Metrics.RUNS, null, null, 1);
+        Metrics.set(Metrics.LAST_RUN, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Write the metrics to the configured node-exporter textfile, if any
+     *
+     * @param  config  osRecorder configuration
+     */
+    void exportMetrics(osRecorderConfig config) {
+        if (config.getMetricsFile() == null) {
+            return;
+        }
+        try {
+            Metrics.writeTextfile(new File(config.getMetricsFile()));
+        } catch (IOException ioe) {
+            System.err.println("Failed to write metrics: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Record the files a FileSet changed under its name
+     */
+    private static void attribute(Map<String, List<String>> attribution, FileSetConfig fileSetConf, FileSet fileSet) {
+        String name = fileSetConf.getName() == null ? "" : fileSetConf.getName();
+        if (!attribution.containsKey(name)) {
+            attribution.put(name, new ArrayList<String>());
+        }
+        attribution.get(name).addAll(fileSet.getChanges());
+    }
+
+    /**
+     * Build the commit message for a run, listing the files each FileSet
+     * changed
+     *
+     * @param  attribution  Changed paths by FileSet name
+     * @param  removed  Files no FileSet includes any more
+     * @return  Commit message
+     */
+    static String commitMessage(Map<String, List<String>> attribution, List<String> removed) {
+        StringBuilder body = new StringBuilder();
+        int files = removed.size();
+        int fileSets = 0;
+        for (Map.Entry<String, List<String>> entry : attribution.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                appendFiles(body, "FileSet: " + entry.getKey(), entry.getValue());
+                files += entry.getValue().size();
+                fileSets++;
+            }
+        }
+        if (!removed.isEmpty()) {
+            appendFiles(body, "Removed:", removed);
+        }
+        return "osRecorder: " + files + " file(s) changed in " + fileSets + " FileSet(s)\n" + body;
+    }
+
+    private static void appendFiles(StringBuilder body, String heading, List<String> paths) {
+        body.append('\n').append(heading).append('\n');
+        for (String path : paths) {
+            body.append("    ").append(path).append('\n');
+        }
+    }
+
+    /**
+     * Queue the change report in the outbox, then send it and any earlier
+     * reports still due using every configured notification method
+     *
+     * @param  config  osRecorder configuration
+     * @param  repo  Change repository the report was committed to
+     * @param  message  Change report, only earlier reports are sent if empty
+     */
+    void sendNotifications(osRecorderConfig config, Repository repo, String message) {
+        List<NotificationDispatcher.Delivery> deliveries;
+        try {
+            //Notify if any changes found
+            if (!message.equals("")) {
+                outbox.enqueue(message, repo);
+            }
+            deliveries = outbox.drain(config.getNotification(), dispatcher);
+        }
+        catch (IOException ioe) {
+            System.err.println("Notification outbox unavailable: " + ioe.getMessage());
+            if (message.equals("")) {
+                return;
+            }
+            deliveries = dispatcher.dispatch(config.getNotification(), message);
+        }
+        for (NotificationDispatcher.Delivery delivery : deliveries) {
+            if (!delivery.isSent()) {
+                System.out.println("Failed to send notification. " + delivery);
+            } else if (verbose) {
+                System.out.println(delivery);
+            }
+        }
+    }
+
+    /**
+     * Time the outbox next needs draining
+     *
+     * @return  Milliseconds since the epoch, Long.MAX_VALUE if nothing is waiting
+     */
+    long getNextRetry() {
+        return outbox.getNextAttempt();
     }
 }
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Glob semantics of {@link FileSetMatcher} include and exclude entries.
+ *
+ * @author Alan Snelson
+ */
+public class FileSetMatcherTest {
+
+    @Test
+    public void wildcardsStayWithinAFolder() {
+        FileSetMatcher matcher = matcher(new String[]{"/etc/*.conf", "/var/log/?.log", "/srv/[ab]*/x", "/opt/{bin,lib}/*"}, null);
+        assertSelected(matcher, "/etc/a.conf", "/etc/.conf", "/var/log/a.log", "/srv/a1/x", "/srv/b/x", "/opt/bin/tool", "/opt/lib/x.so");
+        assertNotSelected(matcher, "/etc/sub/a.conf", "/etc/a.conf.bak", "/var/log/ab.log", "/srv/c/x", "/srv/a/y", "/opt/share/x", "/opt/bin");
+    }
+
+    @Test
+    public void doubleStarMatchesAnyNumberOfFolders() {
+        FileSetMatcher matcher = matcher(new String[]{"/etc/**/*.conf"}, null);
+        assertSelected(matcher, "/etc/a.conf", "/etc/x/a.conf", "/etc/x/y/z/a.conf");
+        assertNotSelected(matcher, "/etc/x/a.txt", "/usr/etc/a.conf");
+    }
+
+    @Test
+    public void trailingDoubleStarSelectsEverythingBelow() {
+        FileSetMatcher matcher = matcher(new String[]{"/etc/**"}, null);
+        assertSelected(matcher, "/etc/passwd", "/etc/x/y/z");
+        assertNotSelected(matcher, "/usr/passwd");
+        assertFalse(matcher.classify("/etc").isPruned());
+        assertFalse(matcher.classify("/etc/x").isPruned());
+        assertTrue(matcher.classify("/usr").isPruned());
+    }
+
+    @Test
+    public void excludes() {
+        FileSetMatcher matcher = matcher(new String[]{"/etc/**"},
+                new String[]{"/etc/ssl/**", "/etc/*.bak", "/etc/shadow", "/etc/**/[0-9]?.tmp"});
+        assertSelected(matcher, "/etc/passwd", "/etc/x/a.bak", "/etc/ssh/config", "/etc/x/abc.tmp");
+        assertNotSelected(matcher, "/etc/ssl/cert.pem", "/etc/ssl/private/key", "/etc/a.bak", "/etc/shadow", "/etc/x/1a.tmp");
+        //Excluded folders are not walked, a literal exclude covers a folder's contents too
+        assertTrue(matcher.classify("/etc/ssl").isPruned());
+        assertTrue(matcher.classify("/etc/shadow/x").isExcluded());
+        assertFalse(matcher.classify("/etc/x").isPruned());
+    }
+
+    @Test
+    public void literalIncludesAvoidListingFolders() {
+        FileSetMatcher matcher = matcher(new String[]{"/etc/hosts", "/etc/ssh/sshd_config"}, null);
+        assertEquals(2, matcher.classify("/etc").getLiteralNames().size());
+        assertNull(matcher(new String[]{"/etc/*"}, null).classify("/etc").getLiteralNames());
+    }
+
+    @Test
+    public void overlappingIncludesNameEachEntryOnce() {
+        FileSetMatcher matcher = matcher(new String[]{"/srv/*/x.conf", "/srv/a/x.conf", "/srv/a/y.conf"}, null);
+        assertNull(matcher.classify("/srv").getLiteralNames());
+        assertEquals(Arrays.asList("x.conf", "y.conf"), matcher.classify("/srv/a").getLiteralNames());
+        assertEquals(Arrays.asList("x.conf"), matcher.classify("/srv/b").getLiteralNames());
+    }
+
+    @Test
+    public void segmentGlobsMatchPathMatcher() {
+        //Without ** every segment glob means the same as in java.nio
+        String[] globs = {"*", "a*", "*b", "a?c", "[ab]*", "[!a]?", "{a,bc}*", "*.{c,h}", "?", "a*b*c"};
+        String[] names = {"a", "b", "ab", "abc", "aXc", "bc", "c", "x.c", "x.h", "x.ch", "aabbcc", ".a", ""};
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            String glob = "/" + globs[random.nextInt(globs.length)] + "/" + globs[random.nextInt(globs.length)];
+            String path = "/" + names[random.nextInt(names.length - 1)] + "/" + names[random.nextInt(names.length - 1)];
+            PathMatcher expected = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            assertEquals(glob + " " + path, expected.matches(Paths.get(path)), matcher(new String[]{glob}, null).classify(path).isSelected());
+        }
+    }
+
+    private static FileSetMatcher matcher(String[] includes, String[] excludes) {
+        return new FileSetMatcher(includes, excludes);
+    }
+
+    private static void assertSelected(FileSetMatcher matcher, String... paths) {
+        for (String path : paths) {
+            assertTrue(path, matcher.classify(path).isSelected());
+        }
+    }
+
+    private static void assertNotSelected(FileSetMatcher matcher, String... paths) {
+        for (String path : paths) {
+            assertFalse(path, matcher.classify(path).isSelected());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-file and total diff budgets of {@link GitRepo#writeDiffs}.
+ *
+ * @author Alan Snelson
+ */
+public class GitRepoDiffTest {
+
+    private static final String LONG = "a/" + repeat("long-folder-name/", 8) + "x.conf";
+    private static final String SHORT = "b.conf";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GitRepo repo;
+
+    @Before
+    public void setup() throws IOException {
+        repo = new GitRepo(folder.getRoot().getPath());
+        stage("one\n");
+        repo.commitRun("first");
+        stage("two\n");
+        //Write the index without committing, so HEAD to index holds the change
+        repo.commitRun(null);
+    }
+
+    @Test
+    public void unlimited() throws IOException {
+        String diffs = diffs(0, 0);
+        assertTrue(diffs.contains("diff --git a/" + LONG));
+        assertTrue(diffs.contains("diff --git a/" + SHORT));
+        assertFalse(diffs.contains("\u2026"));
+    }
+
+    @Test
+    public void fileLimitShorterThanHeader() throws IOException {
+        //The long path's header alone exceeds the per-file limit, the short file fits
+        //whole and the total budget has plenty left
+        String all = diffs(0, 0);
+        long limit = all.substring(all.indexOf("diff --git a/" + SHORT)).length();
+        assertTrue(limit < ("diff --git a/" + LONG + " b/" + LONG + "\n").length());
+        String diffs = diffs(limit, 1000000);
+        assertFalse(diffs.contains(LONG));
+        assertTrue(diffs.contains("diff --git a/" + SHORT));
+        assertTrue(diffs.contains("+two"));
+        assertTrue(diffs.endsWith("\u2026 1 more files\n"));
+    }
+
+    @Test
+    public void totalLimitShorterThanHeader() throws IOException {
+        String diffs = diffs(0, 10);
+        assertEquals("\u2026 2 more files\n", diffs);
+    }
+
+    private String diffs(long fileLimit, long totalLimit) throws IOException {
+        StringWriter out = new StringWriter();
+        repo.writeDiffs(out, fileLimit, totalLimit);
+        return out.toString();
+    }
+
+    private void stage(String content) throws IOException {
+        repo.beginRun();
+        for (String path : new String[]{LONG, SHORT}) {
+            File file = new File(folder.getRoot(), path);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            assertTrue(repo.processFile(path));
+        }
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            result.append(text);
+        }
+        return result.toString();
+    }
+}
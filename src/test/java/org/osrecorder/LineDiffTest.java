@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.incava.util.diff.Diff;
+import org.incava.util.diff.Difference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LineDiff} must give exactly the edit scripts of
+ * org.incava.util.diff.Diff, which printDiffs used before it.
+ *
+ * @author Alan Snelson
+ */
+public class LineDiffTest {
+
+    @Test
+    public void emptyInputs() {
+        assertSameEdits(new String[0], new String[0]);
+        assertSameEdits(new String[0], new String[]{"a", "b"});
+        assertSameEdits(new String[]{"a", "b"}, new String[0]);
+    }
+
+    @Test
+    public void randomCorpus() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            //Few distinct lines, so most lines repeat and matches are ambiguous
+            int alphabet = 1 + random.nextInt(i % 2 == 0 ? 4 : 30);
+            assertSameEdits(randomLines(random, random.nextInt(60), alphabet), randomLines(random, random.nextInt(60), alphabet));
+        }
+    }
+
+    @Test
+    public void mutatedCorpus() {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            String[] lines = randomLines(random, random.nextInt(2000), 1 + random.nextInt(500));
+            assertSameEdits(lines, mutate(lines, random.nextDouble() / 2, random));
+        }
+    }
+
+    @Test
+    public void sourceFiles() throws IOException {
+        //Real files: each source file against the next and against an edited copy
+        List<String[]> files = new ArrayList<String[]>();
+        collect(new File("src/main/java"), files);
+        assertTrue("No source files found", files.size() > 10);
+        Random random = new Random(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            String[] lines = files.get(i);
+            assertSameEdits(lines, files.get((i + 1) % files.size()));
+            assertSameEdits(lines, mutate(lines, 0.05, random));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void assertSameEdits(String[] a, String[] b) {
+        List<Difference> expected = new Diff(a, b).diff();
+        List<Difference> actual = new LineDiff(a, b).diff();
+        if (!expected.equals(actual)) {
+            assertEquals(Arrays.asList(a) + " -> " + Arrays.asList(b), expected, actual);
+        }
+    }
+
+    private static String[] randomLines(Random random, int count, int alphabet) {
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = "line " + random.nextInt(alphabet);
+        }
+        return lines;
+    }
+
+    /**
+     * Change, insert or delete the given fraction of lines
+     */
+    private static String[] mutate(String[] lines, double density, Random random) {
+        List<String> result = new ArrayList<String>(lines.length);
+        for (String line : lines) {
+            if (random.nextDouble() >= density) {
+                result.add(line);
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    result.add(line + " changed");
+                    break;
+                case 1:
+                    result.add(line);
+                    //Copies of existing lines as well as new ones
+                    result.add(random.nextBoolean() ? lines[random.nextInt(lines.length)] : "inserted" + random.nextInt());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static void collect(File dir, List<String[]> files) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else if (child.getName().endsWith(".java")) {
+                files.add(Files.readAllLines(child.toPath(), ScanIndex.UTF8).toArray(new String[0]));
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osrecorder.config.NotificationMethodConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link NotificationOutbox} delivers every queued report, survives a torn
+ * or damaged journal, and backs off a failing notification method.
+ *
+ * @author Alan Snelson
+ */
+public class NotificationOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Recorder dispatcher = new Recorder();
+    private NotificationMethodConfig[] notifications = {method("smtp"), method("xmpp")};
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void deliversEveryReportOnce() throws IOException {
+        NotificationOutbox outbox = outbox();
+        outbox.enqueue("report 1", null);
+        outbox.enqueue("report 2", null);
+        outbox.drain(notifications, dispatcher);
+        assertEquals(4, dispatcher.sent.size());
+        assertTrue(dispatcher.sent.contains("smtp: report 1"));
+        assertTrue(dispatcher.sent.contains("xmpp: report 2"));
+        assertFalse(journal().exists());
+        outbox().drain(notifications, dispatcher);
+        assertEquals(4, dispatcher.sent.size());
+    }
+
+    @Test
+    public void failedMethodDefersItsReports() throws IOException {
+        NotificationOutbox outbox = outbox();
+        for (int i = 0; i < 3; i++) {
+            outbox.enqueue("report " + i, null);
+        }
+        dispatcher.failing = "xmpp";
+        outbox.drain(notifications, dispatcher);
+        //One attempt for the failing method, not one per report
+        assertEquals(Collections.singletonList("xmpp: report 0"), dispatcher.failed);
+        assertEquals(3, dispatcher.sent.size());
+        assertTrue(outbox.getNextAttempt() > System.currentTimeMillis());
+
+        //Not due again yet, also for a new process
+        outbox().drain(notifications, dispatcher);
+        assertEquals(1, dispatcher.failed.size());
+        assertTrue(journal().exists());
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        outbox().enqueue("report 1", null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal(), "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{1, 0, 0, 0, 0, 0, 0, 0, 9, 0});
+        }
+        NotificationOutbox outbox = outbox();
+        outbox.enqueue("report 2", null);
+        outbox.drain(notifications, dispatcher);
+        assertEquals(4, dispatcher.sent.size());
+        assertTrue(dispatcher.sent.contains("smtp: report 2"));
+    }
+
+    @Test
+    public void damagedHeaderIsRebuilt() throws IOException {
+        NotificationOutbox outbox = outbox();
+        outbox.enqueue("report 1", null);
+        outbox.enqueue("report 2", null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal(), "rw")) {
+            raf.write(new byte[32]);
+        }
+        outbox().drain(notifications, dispatcher);
+        assertEquals(4, dispatcher.sent.size());
+        assertFalse(journal().exists());
+    }
+
+    @Test
+    public void truncatedJournalKeepsIntactRecords() throws IOException {
+        NotificationOutbox outbox = outbox();
+        outbox.enqueue("report 1", null);
+        outbox.enqueue("report 2", null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal(), "rw")) {
+            //The header now points past the end of the file
+            raf.setLength(journal().length() - 5);
+        }
+        outbox().drain(notifications, dispatcher);
+        assertEquals(2, dispatcher.sent.size());
+        assertTrue(dispatcher.sent.contains("smtp: report 1"));
+    }
+
+    @Test
+    public void damagedRecordStopsReplay() throws IOException {
+        NotificationOutbox outbox = outbox();
+        outbox.enqueue("report 1", null);
+        long second = journal().length();
+        outbox.enqueue("report 2", null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal(), "rw")) {
+            raf.seek(second + 30);
+            raf.write('X');
+        }
+        outbox().drain(notifications, dispatcher);
+        assertEquals(2, dispatcher.sent.size());
+        assertTrue(dispatcher.sent.contains("xmpp: report 1"));
+    }
+
+    private NotificationOutbox outbox() {
+        return new NotificationOutbox(folder.getRoot(), 60, 3600, null, 30);
+    }
+
+    private File journal() {
+        return new File(folder.getRoot(), "outbox");
+    }
+
+    private static NotificationMethodConfig method(String name) {
+        NotificationMethodConfig notification = new NotificationMethodConfig();
+        notification.setMethod(name);
+        notification.setServer("localhost");
+        notification.setRecipients(new String[]{"admin@localhost"});
+        return notification;
+    }
+
+    /**
+     * Records messages instead of sending them
+     */
+    private static class Recorder extends NotificationDispatcher {
+
+        private List<String> sent = new ArrayList<String>();
+        private List<String> failed = new ArrayList<String>();
+        private String failing;
+
+        @Override
+        public List<Delivery> dispatch(List<NotificationMethodConfig> notifications, List<Message> messages) {
+            List<Delivery> deliveries = new ArrayList<Delivery>();
+            for (int i = 0; i < notifications.size(); i++) {
+                String method = notifications.get(i).getMethod();
+                String message = method + ": " + messages.get(i).getText();
+                if (method.equals(failing)) {
+                    failed.add(message);
+                    deliveries.add(new Delivery(notifications.get(i), "Connection refused", 0));
+                } else {
+                    sent.add(message);
+                    deliveries.add(new Delivery(notifications.get(i), null, 0));
+                }
+            }
+            return deliveries;
+        }
+    }
+}
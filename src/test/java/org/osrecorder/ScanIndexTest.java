@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2008-2012 Wave2 Limited. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Wave2 Limited nor the names of its contributors may be
+ * used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.osrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A damaged {@link ScanIndex} must read as empty, never as wrong
+ * fingerprints, and the next save must replace it with a valid index.
+ *
+ * @author Alan Snelson
+ */
+public class ScanIndexTest {
+
+    private static final int ENTRIES = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = save(0);
+        assertIndex(file, 0);
+    }
+
+    @Test
+    public void updateInPlace() throws IOException {
+        File file = save(0);
+        StatCache cache = new StatCache(file);
+        for (int i = 0; i < ENTRIES; i += 7) {
+            cache.update(path(i), fingerprint(i, 1), hash(i, 1));
+        }
+        cache.save();
+        ScanIndex index = new ScanIndex(file);
+        assertEquals(ENTRIES, index.size());
+        for (int i = 0; i < ENTRIES; i++) {
+            int version = i % 7 == 0 ? 1 : 0;
+            StatCache.Fingerprint fingerprint = index.getFingerprint(index.find(bytes(path(i))));
+            assertEquals(fingerprint(i, version).size, fingerprint.size);
+            assertArrayEquals(hash(i, version), fingerprint.hash);
+        }
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        File file = save(0);
+        truncate(file, 0);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void truncatedHeader() throws IOException {
+        File file = save(0);
+        truncate(file, 10);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void truncatedTable() throws IOException {
+        File file = save(0);
+        truncate(file, file.length() - 3);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void badMagic() throws IOException {
+        File file = save(0);
+        flip(file, 0);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void badEntryCount() throws IOException {
+        File file = save(0);
+        flip(file, 10);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void flippedRecordByte() throws IOException {
+        File file = save(0);
+        //Every byte after the header is covered by the CRC
+        for (long position = 16; position < file.length(); position += file.length() / 13) {
+            flip(file, position);
+            assertEquals(0, new ScanIndex(file).size());
+            flip(file, position);
+        }
+        flip(file, file.length() / 2);
+        assertRebuilt(file);
+    }
+
+    @Test
+    public void pendingIndexReplacesOld() throws IOException {
+        File file = save(0);
+        File pending = new File(file.getPath() + ".new");
+        assertTrue(file.renameTo(pending));
+        assertIndex(file, 0);
+        assertTrue(!pending.exists());
+    }
+
+    /**
+     * A damaged index reads as empty and the next save rebuilds it
+     */
+    private void assertRebuilt(File file) throws IOException {
+        ScanIndex index = new ScanIndex(file);
+        assertEquals(0, index.size());
+        assertTrue(index.find(bytes(path(0))) < 0);
+        StatCache cache = new StatCache(file);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.update(path(i), fingerprint(i, 2), hash(i, 2));
+        }
+        cache.save();
+        assertIndex(file, 2);
+    }
+
+    private void assertIndex(File file, int version) {
+        ScanIndex index = new ScanIndex(file);
+        assertEquals(ENTRIES, index.size());
+        for (int i = 0; i < ENTRIES; i++) {
+            int entry = index.find(bytes(path(i)));
+            assertTrue(path(i), entry >= 0);
+            assertEquals(path(i), index.getPath(entry));
+            StatCache.Fingerprint fingerprint = index.getFingerprint(entry);
+            StatCache.Fingerprint expected = fingerprint(i, version);
+            assertEquals(expected.size, fingerprint.size);
+            assertEquals(expected.ctime, fingerprint.ctime);
+            assertEquals(expected.inode, fingerprint.inode);
+            assertArrayEquals(hash(i, version), fingerprint.hash);
+        }
+        assertTrue(index.find(bytes("missing")) < 0);
+    }
+
+    private File save(int version) throws IOException {
+        File file = new File(folder.getRoot(), "scanindex");
+        StatCache cache = new StatCache(file);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.update(path(i), fingerprint(i, version), hash(i, version));
+        }
+        cache.save();
+        return file;
+    }
+
+    private static String path(int i) {
+        return "etc/dir" + (i % 17) + "/file\u00e9" + i + ".conf";
+    }
+
+    private static byte[] bytes(String path) {
+        return path.getBytes(ScanIndex.UTF8);
+    }
+
+    private static StatCache.Fingerprint fingerprint(int i, int version) {
+        //Old modification times, so no entry is racily clean
+        return new StatCache.Fingerprint(i * 10 + version, 1000 + i, 2000 + i + version, 3000 + i);
+    }
+
+    private static byte[] hash(int i, int version) {
+        byte[] hash = new byte[20];
+        for (int b = 0; b < hash.length; b++) {
+            hash[b] = (byte) (i * 31 + b + version);
+        }
+        return hash;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static void flip(File file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x5a);
+        }
+    }
+}